@@ -0,0 +1,47 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Wiring shared by the benchmarks, on top of {@link TestSupport}: JUL is kept at WARNING so
+ * per-message INFO logs do not dominate the numbers.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    static void quietLogging() {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Logger.getLogger("com.alticelabs").setLevel(Level.WARNING);
+    }
+
+    static NotificationMetrics metrics() {
+        return TestSupport.metrics();
+    }
+
+    static Path tempDirectory() throws IOException {
+        return Files.createTempDirectory("onecare-bench");
+    }
+
+    static SqliteConnectionPool openPool(Path directory) {
+        return TestSupport.openPool(directory);
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
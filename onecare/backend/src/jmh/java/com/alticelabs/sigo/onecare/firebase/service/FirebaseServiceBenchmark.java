@@ -0,0 +1,84 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.messaging.FirebaseMessagingStub;
+import com.google.firebase.messaging.MulticastMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message build and response mapping for the Kafka-style data-only multicast, against an offline
+ * FirebaseMessaging ({@link FirebaseMessagingStub}) so only our side of the send is measured.
+ * One token in twenty is stale and comes back UNREGISTERED.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirebaseServiceBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    int audience;
+
+    private FirebaseApp app;
+    private FirebaseService service;
+    private List<String> tokens;
+    private Map<String, String> data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        app = FirebaseMessagingStub.offlineApp("benchmark-" + audience);
+        service = new FirebaseService();
+        service.metrics = BenchmarkSupport.metrics();
+        service.multicastChunkSize = 500;
+        service.multicastMaxParallelism = 4;
+        service.retryMaxAttempts = 3;
+        service.retryInitialBackoffMs = 500;
+        service.retryMaxBackoffMs = 10_000;
+        // Unthrottled: the benchmark measures the send path, not the configured quota
+        service.rateLimiter = new FcmRateLimiter();
+        service.start(FirebaseMessagingStub.create(app));
+
+        tokens = new ArrayList<>(audience);
+        for (int i = 0; i < audience; i++) {
+            tokens.add((i % 20 == 0 ? FirebaseMessagingStub.STALE_PREFIX : "device-token-") + i);
+        }
+        data = Map.of(
+                "ticketId", "TTK-2026-000123",
+                "createdBy", "oper2",
+                "actionUsername", "oper1",
+                "titleKey", "ticket_updated_title",
+                "bodyKey", "body_status_changed",
+                "changes", "[{\"type\":\"FieldChange\",\"fieldName\":\"status\",\"oldValue\":\"Open\",\"newValue\":\"InProgress\"}]");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        app.delete();
+    }
+
+    @Benchmark
+    public List<MulticastMessage> buildMessages() {
+        return service.buildMulticastMessages(service.partitionTokens(tokens),
+                null, null, data, null, null, null, null);
+    }
+
+    @Benchmark
+    public NotificationResponse sendMulticast() {
+        return service.sendMulticastNotification(tokens, null, null, data, null, null, null, null);
+    }
+
+    @Benchmark
+    public NotificationResponse sendMulticastAsync() {
+        return service.sendMulticastNotificationAsync(tokens, null, null, data, null, null, null, null)
+                .toCompletableFuture().join();
+    }
+}
@@ -0,0 +1,42 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-record cost of the consumer's parse/classify path (pre-filter, tree build, classification
+ * and data map) for relevant events and for the two kinds of events dropped by the pre-filter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KafkaNotificationConsumerBenchmark {
+
+    @Param({"status", "note", "attachment", "otherOrigin", "otherSchema"})
+    String payloadKind;
+
+    private KafkaNotificationConsumer consumer;
+    private String payload;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        consumer = new KafkaNotificationConsumer();
+        consumer.objectMapper = new ObjectMapper();
+        consumer.metrics = BenchmarkSupport.metrics();
+        consumer.teamFields = List.of("createdByTeam");
+        consumer.init();
+        payload = TtkPayloads.payload(payloadKind);
+    }
+
+    @Benchmark
+    public Object parseNotification() throws Exception {
+        return consumer.parseNotification(payload);
+    }
+}
@@ -0,0 +1,109 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.google.firebase.messaging.AndroidConfig;
+import com.google.firebase.messaging.AndroidNotification;
+import com.google.firebase.messaging.ApnsConfig;
+import com.google.firebase.messaging.Aps;
+import com.google.firebase.messaging.ApsAlert;
+import com.google.firebase.messaging.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building one topic message with the shared {@link MessageTemplates} configs against the previous
+ * per-send construction of AndroidConfig/ApnsConfig/Aps. "dataOnly" is what every Kafka event sends,
+ * "localized" a REST send with loc keys and args. Run with -prof gc to compare
+ * gc.alloc.rate.norm (bytes per message).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageTemplatesBenchmark {
+
+    @Param({"dataOnly", "localized"})
+    String mode;
+
+    private MessageTemplates templates;
+    private String titleLocKey;
+    private List<String> titleLocArgs;
+    private String bodyLocKey;
+    private List<String> bodyLocArgs;
+    private Map<String, String> data;
+
+    @Setup
+    public void setUp() {
+        templates = new MessageTemplates();
+        if ("localized".equals(mode)) {
+            titleLocKey = "ticket_updated_title";
+            titleLocArgs = List.of("TTK-2026-000123");
+            bodyLocKey = "body_status_changed";
+            bodyLocArgs = List.of("Open", "InProgress");
+        }
+        data = Map.of(
+                "ticketId", "TTK-2026-000123",
+                "titleKey", "ticket_updated_title",
+                "bodyKey", "body_status_changed");
+    }
+
+    @Benchmark
+    public Message cachedConfigs() {
+        return templates.configsFor(null, null, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs)
+                .applyTo(Message.builder())
+                .setTopic("team-42")
+                .putAllData(data)
+                .build();
+    }
+
+    @Benchmark
+    public Message rebuiltConfigs() {
+        Message.Builder messageBuilder = Message.builder().setTopic("team-42");
+        if (titleLocKey != null || bodyLocKey != null) {
+            messageBuilder.setAndroidConfig(buildAndroidConfig());
+            messageBuilder.setApnsConfig(buildApnsConfig());
+        } else {
+            messageBuilder.setAndroidConfig(AndroidConfig.builder()
+                    .setPriority(AndroidConfig.Priority.HIGH)
+                    .build());
+            messageBuilder.setApnsConfig(ApnsConfig.builder()
+                    .setAps(Aps.builder()
+                            .setContentAvailable(true)
+                            .build())
+                    .build());
+        }
+        return messageBuilder.putAllData(data).build();
+    }
+
+    // Pre-template implementation, kept here as the comparison baseline
+
+    private AndroidConfig buildAndroidConfig() {
+        return AndroidConfig.builder()
+                .setPriority(AndroidConfig.Priority.HIGH)
+                .setNotification(AndroidNotification.builder()
+                        .setTitleLocalizationKey(titleLocKey)
+                        .addAllTitleLocalizationArgs(titleLocArgs)
+                        .setBodyLocalizationKey(bodyLocKey)
+                        .addAllBodyLocalizationArgs(bodyLocArgs)
+                        .setChannelId(MessageTemplates.ANDROID_CHANNEL_ID)
+                        .build())
+                .build();
+    }
+
+    private ApnsConfig buildApnsConfig() {
+        return ApnsConfig.builder()
+                .setAps(Aps.builder()
+                        .setAlert(ApsAlert.builder()
+                                .setTitleLocalizationKey(titleLocKey)
+                                .addAllTitleLocArgs(titleLocArgs)
+                                .setLocalizationKey(bodyLocKey)
+                                .addAllLocalizationArgs(bodyLocArgs)
+                                .build())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,121 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recipient lookups against a tokens table of the given size (two devices per user).
+ * sqlAllTokensExceptUser runs the query the service used before the in-memory index and is kept
+ * as the baseline for the broadcast path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenStorageServiceBenchmark {
+
+    private static final int TOKENS_PER_USER = 2;
+
+    @Param({"10000", "100000", "1000000"})
+    int rows;
+
+    private Path directory;
+    private SqliteConnectionPool pool;
+    private TokenStorageService service;
+    private int users;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.quietLogging();
+        directory = BenchmarkSupport.tempDirectory();
+        pool = BenchmarkSupport.openPool(directory);
+
+        TokenStorageService schema = new TokenStorageService();
+        schema.pool = pool;
+        schema.metrics = BenchmarkSupport.metrics();
+        schema.teamTopics = new TeamTopicService();
+        schema.init();
+
+        users = rows / TOKENS_PER_USER;
+        pool.writeInTransaction(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "INSERT INTO tokens (token, user_id, saved_at) VALUES (?, ?, ?)")) {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < rows; i++) {
+                    ps.setString(1, "device-token-" + i);
+                    ps.setString(2, "user-" + (i % users));
+                    ps.setLong(3, now);
+                    ps.addBatch();
+                    if (i % 10_000 == 9_999) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            return null;
+        });
+
+        service = new TokenStorageService();
+        service.pool = pool;
+        service.metrics = BenchmarkSupport.metrics();
+        service.teamTopics = new TeamTopicService();
+        service.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.close();
+        BenchmarkSupport.delete(directory);
+    }
+
+    private String randomUser() {
+        return "user-" + ThreadLocalRandom.current().nextInt(users);
+    }
+
+    @Benchmark
+    public List<String> getTokensForUser() {
+        return service.getTokensForUser(randomUser());
+    }
+
+    @Benchmark
+    public String getUserIdForToken() {
+        return service.getUserIdForToken("device-token-" + ThreadLocalRandom.current().nextInt(rows));
+    }
+
+    @Benchmark
+    public List<String> getAllTokensExceptUser() {
+        return service.getAllTokensExceptUser(randomUser());
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getTokensByUserSnapshot() {
+        return service.getTokensByUserSnapshot();
+    }
+
+    @Benchmark
+    public List<String> sqlAllTokensExceptUser() throws Exception {
+        String excluded = randomUser();
+        return pool.read(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("SELECT token FROM tokens WHERE user_id != ?")) {
+                ps.setString(1, excluded);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<String> tokens = new ArrayList<>();
+                    while (rs.next()) {
+                        tokens.add(rs.getString(1));
+                    }
+                    return tokens;
+                }
+            }
+        });
+    }
+}
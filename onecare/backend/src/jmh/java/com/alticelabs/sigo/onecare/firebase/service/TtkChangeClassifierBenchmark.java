@@ -0,0 +1,162 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-pass {@link TtkChangeClassifier} against the previous per-question walks
+ * (relevance check, two resolveChanges calls, body key walk, Instant.parse per note/attachment).
+ * Run with -prof gc to compare gc.alloc.rate.norm (bytes per classified message).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TtkChangeClassifierBenchmark {
+
+    @Param({"status", "note", "attachment"})
+    String payload;
+
+    private ObjectMapper objectMapper;
+    private TtkChangeClassifier classifier;
+    private JsonNode root;
+    private String eventType;
+
+    @Setup
+    public void setUp() throws Exception {
+        objectMapper = new ObjectMapper();
+        classifier = new TtkChangeClassifier(objectMapper);
+        root = objectMapper.readTree(TtkPayloads.payload(payload));
+        eventType = root.path("header").path("eventType").asText();
+    }
+
+    @Benchmark
+    public TtkChangeClassifier.TtkChangeSummary singlePass() {
+        return classifier.classify(root, eventType);
+    }
+
+    @Benchmark
+    public void previousWalks(Blackhole blackhole) throws Exception {
+        JsonNode dataNode = root.path("data").path("value");
+        JsonNode changesArray = resolveChanges(root);
+        if (!hasRelevantChange(changesArray, dataNode)) {
+            return;
+        }
+        JsonNode changesNode = resolveChanges(root);
+        blackhole.consume(TtkChangeClassifier.resolveTitleKey(eventType));
+        blackhole.consume(resolveBodyKey(changesNode, dataNode));
+        blackhole.consume(objectMapper.writeValueAsString(changesNode));
+    }
+
+    // Pre-classifier implementation, kept here as the comparison baseline
+
+    private JsonNode resolveChanges(JsonNode root) {
+        JsonNode changes = root.path("changes");
+        if (changes != null && changes.isArray() && changes.size() > 0) {
+            return changes;
+        }
+        JsonNode dataChanges = root.path("data").path("changes");
+        if (dataChanges != null && dataChanges.isArray()) {
+            return dataChanges;
+        }
+        return objectMapper.createArrayNode();
+    }
+
+    private boolean hasRelevantChange(JsonNode changesNode, JsonNode dataNode) {
+        if (changesNode != null && changesNode.isArray() && !changesNode.isEmpty()) {
+            for (JsonNode change : changesNode) {
+                String type = change.path("type").asText("");
+                if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
+                    return true;
+                }
+                if ("FieldChange".equalsIgnoreCase(type)) {
+                    String fieldName = change.path("fieldName").asText("");
+                    if ("status".equalsIgnoreCase(fieldName) ||
+                            "impact".equalsIgnoreCase(fieldName) ||
+                            "severity".equalsIgnoreCase(fieldName)) {
+                        return true;
+                    }
+                } else if ("Note".equalsIgnoreCase(type) || "Attachment".equalsIgnoreCase(type)) {
+                    return true;
+                }
+            }
+        }
+        return isRecentUpdate(dataNode, "notes") || isRecentUpdate(dataNode, "attachments");
+    }
+
+    private String resolveBodyKey(JsonNode changesNode, JsonNode dataNode) {
+        if (changesNode != null && changesNode.isArray() && !changesNode.isEmpty()) {
+            for (JsonNode change : changesNode) {
+                String type = change.path("type").asText("");
+                if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
+                    return "body_ticket_created";
+                }
+                if ("FieldChange".equalsIgnoreCase(type)) {
+                    String fieldName = change.path("fieldName").asText("");
+                    if ("status".equalsIgnoreCase(fieldName)) {
+                        return "body_status_changed";
+                    }
+                    if ("impact".equalsIgnoreCase(fieldName)) {
+                        return "body_impact_changed";
+                    }
+                    if ("severity".equalsIgnoreCase(fieldName)) {
+                        return "body_severity_changed";
+                    }
+                } else if ("Note".equalsIgnoreCase(type)) {
+                    return "body_note_added";
+                } else if ("Attachment".equalsIgnoreCase(type)) {
+                    String action = change.path("action").asText("");
+                    if ("REMOVE".equalsIgnoreCase(action)) {
+                        return "body_attachment_removed";
+                    }
+                    return "body_attachment_added";
+                }
+            }
+        }
+        if (isRecentUpdate(dataNode, "notes")) {
+            return "body_note_added";
+        }
+        if (isRecentUpdate(dataNode, "attachments")) {
+            return "body_attachment_added";
+        }
+        return "ticket_updated";
+    }
+
+    private boolean isRecentUpdate(JsonNode dataNode, String arrayField) {
+        Instant lastUpdateInstant = parseInstant(dataNode.path("lastUpdate").asText(""));
+        if (lastUpdateInstant == null) {
+            return false;
+        }
+        JsonNode items = dataNode.path(arrayField);
+        if (!items.isArray() || items.isEmpty()) {
+            return false;
+        }
+        Instant latest = null;
+        for (JsonNode item : items) {
+            Instant createdInstant = parseInstant(item.path("creationDate").asText(""));
+            if (createdInstant != null && (latest == null || createdInstant.isAfter(latest))) {
+                latest = createdInstant;
+            }
+        }
+        return latest != null && Math.abs(Duration.between(lastUpdateInstant, latest).getSeconds()) <= 5;
+    }
+
+    private Instant parseInstant(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Instant.parse(value);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
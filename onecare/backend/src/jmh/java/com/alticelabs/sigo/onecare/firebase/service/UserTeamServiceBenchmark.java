@@ -0,0 +1,83 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Union of team members (and of their device tokens) for a ticket audience spanning many teams.
+ * Every team has MEMBERS_PER_TEAM users drawn from a shared population, so memberships overlap;
+ * every user has one device token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserTeamServiceBenchmark {
+
+    private static final int MEMBERS_PER_TEAM = 25;
+    private static final int USERS = 5_000;
+
+    @Param({"10", "100", "1000"})
+    int teams;
+
+    private Path directory;
+    private SqliteConnectionPool pool;
+    private UserTeamService service;
+    private List<String> teamIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.quietLogging();
+        directory = BenchmarkSupport.tempDirectory();
+        pool = BenchmarkSupport.openPool(directory);
+
+        service = new UserTeamService();
+        service.pool = pool;
+        service.teamTopics = new TeamTopicService();
+        service.init();
+
+        TokenStorageService tokens = new TokenStorageService();
+        tokens.pool = pool;
+        tokens.metrics = BenchmarkSupport.metrics();
+        tokens.teamTopics = new TeamTopicService();
+        tokens.init();
+        for (int u = 0; u < USERS; u++) {
+            tokens.registerToken("user-" + u, "device-token-" + u);
+        }
+
+        teamIds = new ArrayList<>(teams);
+        for (int t = 0; t < teams; t++) {
+            String teamId = "team-" + t;
+            List<String> members = new ArrayList<>(MEMBERS_PER_TEAM);
+            for (int m = 0; m < MEMBERS_PER_TEAM; m++) {
+                members.add("user-" + ((t * 7 + m * 31) % USERS));
+            }
+            service.addUsersToTeam(members, teamId);
+            teamIds.add(teamId);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.close();
+        BenchmarkSupport.delete(directory);
+    }
+
+    @Benchmark
+    public Set<String> getUsersInTeams() throws SQLException {
+        return service.getUsersInTeams(teamIds);
+    }
+
+    @Benchmark
+    public List<String> getTokensForTeams() throws SQLException {
+        return service.getTokensForTeams(teamIds, "user-0");
+    }
+}
@@ -0,0 +1,20 @@
+package com.alticelabs.sigo.onecare.firebase.dto;
+
+public class DigestPreferenceRequest {
+    private Integer intervalMinutes;
+
+    public DigestPreferenceRequest() {
+    }
+
+    public DigestPreferenceRequest(Integer intervalMinutes) {
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    public Integer getIntervalMinutes() {
+        return intervalMinutes;
+    }
+
+    public void setIntervalMinutes(Integer intervalMinutes) {
+        this.intervalMinutes = intervalMinutes;
+    }
+}
@@ -1,5 +1,7 @@
 package com.alticelabs.sigo.onecare.firebase.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -7,6 +9,7 @@ public class NotificationResponse {
     private int successCount;
     private int failureCount;
     private List<NotificationResult> results;
+    private List<String> unsentTokens = new ArrayList<>();
 
     public NotificationResponse() {
         this.results = new ArrayList<>();
@@ -42,20 +45,39 @@ public class NotificationResponse {
         this.results = results;
     }
 
+    /**
+     * Tokens of multicast chunks whose request failed as a whole: nothing reached them, and their
+     * error code describes the request rather than the token
+     */
+    @JsonIgnore
+    public List<String> getUnsentTokens() {
+        return unsentTokens;
+    }
+
+    public void setUnsentTokens(List<String> unsentTokens) {
+        this.unsentTokens = unsentTokens;
+    }
+
     public static class NotificationResult {
         private String token;
         private boolean success;
         private String messageId;
         private String error;
+        private String errorCode;
 
         public NotificationResult() {
         }
 
         public NotificationResult(String token, boolean success, String messageId, String error) {
+            this(token, success, messageId, error, null);
+        }
+
+        public NotificationResult(String token, boolean success, String messageId, String error, String errorCode) {
             this.token = token;
             this.success = success;
             this.messageId = messageId;
             this.error = error;
+            this.errorCode = errorCode;
         }
 
         public String getToken() {
@@ -89,5 +111,16 @@ public class NotificationResponse {
         public void setError(String error) {
             this.error = error;
         }
+
+        /**
+         * MessagingErrorCode name (or the generic Firebase ErrorCode when FCM gave none) of a failed send
+         */
+        public String getErrorCode() {
+            return errorCode;
+        }
+
+        public void setErrorCode(String errorCode) {
+            this.errorCode = errorCode;
+        }
     }
 }
@@ -0,0 +1,22 @@
+package com.alticelabs.sigo.onecare.firebase.dto;
+
+import java.util.List;
+
+public class TokenBatchRequest {
+    private List<DeviceTokenRequest> tokens;
+
+    public TokenBatchRequest() {
+    }
+
+    public TokenBatchRequest(List<DeviceTokenRequest> tokens) {
+        this.tokens = tokens;
+    }
+
+    public List<DeviceTokenRequest> getTokens() {
+        return tokens;
+    }
+
+    public void setTokens(List<DeviceTokenRequest> tokens) {
+        this.tokens = tokens;
+    }
+}
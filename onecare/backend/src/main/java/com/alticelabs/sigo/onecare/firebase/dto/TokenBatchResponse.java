@@ -0,0 +1,116 @@
+package com.alticelabs.sigo.onecare.firebase.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TokenBatchResponse {
+    private int successCount;
+    private int failureCount;
+    private List<TokenResult> results;
+
+    public TokenBatchResponse() {
+        this.results = new ArrayList<>();
+    }
+
+    public TokenBatchResponse(int successCount, int failureCount, List<TokenResult> results) {
+        this.successCount = successCount;
+        this.failureCount = failureCount;
+        this.results = results;
+    }
+
+    public int getSuccessCount() {
+        return successCount;
+    }
+
+    public void setSuccessCount(int successCount) {
+        this.successCount = successCount;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    public void setFailureCount(int failureCount) {
+        this.failureCount = failureCount;
+    }
+
+    public List<TokenResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<TokenResult> results) {
+        this.results = results;
+    }
+
+    /**
+     * Outcome of one item, in request order
+     */
+    public static class TokenResult {
+        public static final String REGISTERED = "registered";
+        public static final String REASSIGNED = "reassigned";
+        public static final String DUPLICATE = "duplicate";
+        public static final String INVALID = "invalid";
+        public static final String FAILED = "failed";
+
+        private String userId;
+        private String deviceToken;
+        private boolean success;
+        private String status;
+        private String error;
+
+        public TokenResult() {
+        }
+
+        public TokenResult(String userId, String deviceToken, boolean success, String status, String error) {
+            this.userId = userId;
+            this.deviceToken = deviceToken;
+            this.success = success;
+            this.status = status;
+            this.error = error;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public void setUserId(String userId) {
+            this.userId = userId;
+        }
+
+        public String getDeviceToken() {
+            return deviceToken;
+        }
+
+        public void setDeviceToken(String deviceToken) {
+            this.deviceToken = deviceToken;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public void setSuccess(boolean success) {
+            this.success = success;
+        }
+
+        /**
+         * registered, reassigned (the token belonged to another user), duplicate (the token
+         * appears again later in the batch, which wins), invalid or failed
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        public void setStatus(String status) {
+            this.status = status;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.alticelabs.sigo.onecare.firebase.resource;
+
+import com.alticelabs.sigo.onecare.firebase.service.DeadLetterService;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Path("/api/dead-letters")
+@Produces(MediaType.APPLICATION_JSON)
+public class DeadLetterResource {
+
+    @Inject
+    DeadLetterService deadLetterService;
+
+    /**
+     * Starts replaying dead-lettered records in the background; progress is reported by GET
+     */
+    @POST
+    @Path("/replay")
+    public Response replay(
+            @QueryParam("limit") @DefaultValue("1000") int limit,
+            @QueryParam("ratePerSecond") @DefaultValue("0") double ratePerSecond
+    ) {
+        if (limit <= 0) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "limit must be positive");
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build();
+        }
+
+        DeadLetterService.ReplayStatus status = deadLetterService.startReplay(limit, ratePerSecond);
+        if (status == null) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("error", "A replay is already running");
+            errorResponse.put("replay", deadLetterService.getReplayStatus());
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(errorResponse)
+                    .build();
+        }
+        return Response.accepted(status).build();
+    }
+
+    @GET
+    @Path("/replay")
+    public Response replayStatus() {
+        DeadLetterService.ReplayStatus status = deadLetterService.getReplayStatus();
+        if (status == null) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "No replay has been started");
+            return Response.status(Response.Status.NOT_FOUND)
+                    .entity(errorResponse)
+                    .build();
+        }
+        return Response.ok(status).build();
+    }
+}
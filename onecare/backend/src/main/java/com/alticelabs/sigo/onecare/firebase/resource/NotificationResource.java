@@ -3,10 +3,10 @@ package com.alticelabs.sigo.onecare.firebase.resource;
 import com.alticelabs.sigo.onecare.firebase.dto.NotificationRequest;
 import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
 import com.alticelabs.sigo.onecare.firebase.dto.TopicNotificationRequest;
-import com.alticelabs.sigo.onecare.firebase.dto.TopicNotificationResponse;
 import com.alticelabs.sigo.onecare.firebase.dto.UserNotificationRequest;
 import com.alticelabs.sigo.onecare.firebase.service.FirebaseService;
 import com.alticelabs.sigo.onecare.firebase.service.TokenStorageService;
+import io.smallrye.mutiny.Uni;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
@@ -15,6 +15,7 @@ import jakarta.ws.rs.core.Response;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 @Path("/api/notifications")
 @Produces(MediaType.APPLICATION_JSON)
@@ -30,194 +31,170 @@ public class NotificationResource {
 
     @POST
     @Path("/send")
-    public Response sendNotification(NotificationRequest request) {
-        try {
-            if (request.getTokens() == null || request.getTokens().isEmpty()) {
-                Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "Device tokens are required");
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(errorResponse)
-                        .build();
-            }
-
-            if ((request.getTitle() == null || request.getTitle().isEmpty()) &&
-                    (request.getTitleLocKey() == null || request.getTitleLocKey().isEmpty())) {
-                Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "Notification title or titleLocKey is required");
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(errorResponse)
-                        .build();
-            }
-
-            NotificationResponse result = firebaseService.sendMulticastNotification(
-                    request.getTokens(),
-                    request.getTitle(),
-                    request.getBody(),
-                    request.getData(),
-                    request.getTitleLocKey(),
-                    request.getTitleLocArgs(),
-                    request.getBodyLocKey(),
-                    request.getBodyLocArgs()
-            );
-
-            return Response.ok(result).build();
-
-        } catch (IllegalArgumentException e) {
+    public Uni<Response> sendNotification(NotificationRequest request) {
+        if (request.getTokens() == null || request.getTokens().isEmpty()) {
             Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", e.getMessage());
-            return Response.status(Response.Status.BAD_REQUEST)
+            errorResponse.put("error", "Device tokens are required");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
                     .entity(errorResponse)
-                    .build();
-        } catch (Exception e) {
+                    .build());
+        }
+
+        if ((request.getTitle() == null || request.getTitle().isEmpty()) &&
+                (request.getTitleLocKey() == null || request.getTitleLocKey().isEmpty())) {
             Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Failed to send notifications: " + e.getMessage());
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+            errorResponse.put("error", "Notification title or titleLocKey is required");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
                     .entity(errorResponse)
-                    .build();
+                    .build());
         }
+
+        return Uni.createFrom().completionStage(() -> firebaseService.sendMulticastNotificationAsync(
+                        request.getTokens(),
+                        request.getTitle(),
+                        request.getBody(),
+                        request.getData(),
+                        request.getTitleLocKey(),
+                        request.getTitleLocArgs(),
+                        request.getBodyLocKey(),
+                        request.getBodyLocArgs()
+                ))
+                .map(result -> Response.ok(result).build())
+                .onFailure().recoverWithItem(this::sendFailureResponse);
     }
 
     @POST
     @Path("/send-to-user")
-    public Response sendToUser(UserNotificationRequest request) {
-        try {
-            if (request.getUserId() == null || request.getUserId().isEmpty()) {
-                Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "userId is required");
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(errorResponse)
-                        .build();
-            }
-
-            if ((request.getTitle() == null || request.getTitle().isEmpty()) &&
-                    (request.getTitleLocKey() == null || request.getTitleLocKey().isEmpty())) {
-                Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "Notification title or titleLocKey is required");
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(errorResponse)
-                        .build();
-            }
+    public Uni<Response> sendToUser(UserNotificationRequest request) {
+        if (request.getUserId() == null || request.getUserId().isEmpty()) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "userId is required");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build());
+        }
 
-            // Get tokens for the user
-            List<String> tokens = tokenStorageService.getTokensForUser(request.getUserId());
+        if ((request.getTitle() == null || request.getTitle().isEmpty()) &&
+                (request.getTitleLocKey() == null || request.getTitleLocKey().isEmpty())) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "Notification title or titleLocKey is required");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build());
+        }
 
-            if (tokens.isEmpty()) {
-                Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "No device tokens found for user: " + request.getUserId());
-                return Response.status(Response.Status.NOT_FOUND)
-                        .entity(errorResponse)
-                        .build();
-            }
+        // Get tokens for the user (served from the in-memory token index, so safe on the event loop)
+        List<String> tokens = tokenStorageService.getTokensForUser(request.getUserId());
 
-            // Send notification to all user's devices
-            NotificationResponse result = firebaseService.sendMulticastNotification(
-                    tokens,
-                    request.getTitle(),
-                    request.getBody(),
-                    request.getData(),
-                    request.getTitleLocKey(),
-                    request.getTitleLocArgs(),
-                    request.getBodyLocKey(),
-                    request.getBodyLocArgs()
-            );
-
-            return Response.ok(result).build();
-
-        } catch (IllegalArgumentException e) {
+        if (tokens.isEmpty()) {
             Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "No device tokens found for user: " + request.getUserId());
+            return Uni.createFrom().item(Response.status(Response.Status.NOT_FOUND)
+                    .entity(errorResponse)
+                    .build());
+        }
+
+        // Send notification to all user's devices
+        return Uni.createFrom().completionStage(() -> firebaseService.sendMulticastNotificationAsync(
+                        tokens,
+                        request.getTitle(),
+                        request.getBody(),
+                        request.getData(),
+                        request.getTitleLocKey(),
+                        request.getTitleLocArgs(),
+                        request.getBodyLocKey(),
+                        request.getBodyLocArgs()
+                ))
+                .map(result -> Response.ok(result).build())
+                .onFailure().recoverWithItem(this::sendFailureResponse);
+    }
+
+    private Response sendFailureResponse(Throwable failure) {
+        return failureResponse("Failed to send notifications: ", failure);
+    }
+
+    private Response failureResponse(String message, Throwable failure) {
+        Throwable e = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        Map<String, String> errorResponse = new HashMap<>();
+        if (e instanceof IllegalArgumentException) {
             errorResponse.put("error", e.getMessage());
             return Response.status(Response.Status.BAD_REQUEST)
                     .entity(errorResponse)
                     .build();
-        } catch (Exception e) {
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Failed to send notifications: " + e.getMessage());
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(errorResponse)
-                    .build();
         }
+        errorResponse.put("error", message + e.getMessage());
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(errorResponse)
+                .build();
     }
 
     @POST
     @Path("/send-to-topic")
-    public Response sendToTopic(TopicNotificationRequest request) {
-        try {
-            if (request.getTopic() == null || request.getTopic().isEmpty()) {
-                Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "topic is required");
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(errorResponse)
-                        .build();
-            }
+    public Uni<Response> sendToTopic(TopicNotificationRequest request) {
+        if (request.getTopic() == null || request.getTopic().isEmpty()) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "topic is required");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build());
+        }
 
-            if (request.getType() == null || request.getType().isEmpty()) {
+        if (request.getType() == null || request.getType().isEmpty()) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "type is required");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build());
+        }
+
+        String type = request.getType().trim().toLowerCase();
+        Map<String, String> data = new HashMap<>();
+        data.put("type", type);
+
+        if (TYPE_MAINTENANCE.equals(type)) {
+            if (request.getStartAt() == null || request.getStartAt().isEmpty() ||
+                    request.getEndAt() == null || request.getEndAt().isEmpty()) {
                 Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "type is required");
-                return Response.status(Response.Status.BAD_REQUEST)
+                errorResponse.put("error", "startAt and endAt are required for maintenance");
+                return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
                         .entity(errorResponse)
-                        .build();
+                        .build());
             }
-
-            String type = request.getType().trim().toLowerCase();
-            Map<String, String> data = new HashMap<>();
-            data.put("type", type);
-
-            if (TYPE_MAINTENANCE.equals(type)) {
-                if (request.getStartAt() == null || request.getStartAt().isEmpty() ||
-                        request.getEndAt() == null || request.getEndAt().isEmpty()) {
-                    Map<String, String> errorResponse = new HashMap<>();
-                    errorResponse.put("error", "startAt and endAt are required for maintenance");
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(errorResponse)
-                            .build();
-                }
-                data.put("startAt", request.getStartAt());
-                data.put("endAt", request.getEndAt());
-            } else if (TYPE_GENERAL.equals(type)) {
-                if (request.getBody() == null || request.getBody().isEmpty()) {
-                    Map<String, String> errorResponse = new HashMap<>();
-                    errorResponse.put("error", "body is required for general");
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(errorResponse)
-                            .build();
-                }
-                // Send only data payload, no notification payload
-                // Flutter will handle displaying the notification
-                data.put("body", request.getBody());
-            } else {
+            data.put("startAt", request.getStartAt());
+            data.put("endAt", request.getEndAt());
+        } else if (TYPE_GENERAL.equals(type)) {
+            if (request.getBody() == null || request.getBody().isEmpty()) {
                 Map<String, String> errorResponse = new HashMap<>();
-                errorResponse.put("error", "type must be maintenance or general");
-                return Response.status(Response.Status.BAD_REQUEST)
+                errorResponse.put("error", "body is required for general");
+                return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
                         .entity(errorResponse)
-                        .build();
+                        .build());
             }
-
-            TopicNotificationResponse result = firebaseService.sendTopicNotification(
-                    request.getTopic(),
-                    null,
-                    null,
-                    data,
-                    null,
-                    null,
-                    null,
-                    null
-            );
-
-            return Response.ok(result).build();
-
-        } catch (IllegalArgumentException e) {
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", e.getMessage());
-            return Response.status(Response.Status.BAD_REQUEST)
-                    .entity(errorResponse)
-                    .build();
-        } catch (Exception e) {
+            // Send only data payload, no notification payload
+            // Flutter will handle displaying the notification
+            data.put("body", request.getBody());
+        } else {
             Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Failed to send topic notification: " + e.getMessage());
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+            errorResponse.put("error", "type must be maintenance or general");
+            return Uni.createFrom().item(Response.status(Response.Status.BAD_REQUEST)
                     .entity(errorResponse)
-                    .build();
+                    .build());
         }
+
+        return Uni.createFrom().completionStage(() -> firebaseService.sendTopicNotificationAsync(
+                        request.getTopic(),
+                        null,
+                        null,
+                        data,
+                        null,
+                        null,
+                        null,
+                        null
+                ))
+                .map(result -> Response.ok(result).build())
+                .onFailure().recoverWithItem(failure -> failureResponse("Failed to send topic notification: ", failure));
     }
 
     @GET
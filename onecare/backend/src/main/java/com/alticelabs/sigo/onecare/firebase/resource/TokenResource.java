@@ -1,11 +1,16 @@
 package com.alticelabs.sigo.onecare.firebase.resource;
 
 import com.alticelabs.sigo.onecare.firebase.dto.DeviceTokenRequest;
+import com.alticelabs.sigo.onecare.firebase.dto.DigestPreferenceRequest;
+import com.alticelabs.sigo.onecare.firebase.dto.TokenBatchRequest;
+import com.alticelabs.sigo.onecare.firebase.dto.TokenBatchResponse;
+import com.alticelabs.sigo.onecare.firebase.service.KeysetPage;
 import com.alticelabs.sigo.onecare.firebase.service.TokenStorageService;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
 import java.util.HashMap;
 import java.util.List;
@@ -16,6 +21,8 @@ import java.util.Map;
 @Consumes(MediaType.APPLICATION_JSON)
 public class TokenResource {
 
+    static final String NDJSON = "application/x-ndjson";
+
     @Inject
     TokenStorageService tokenStorageService;
 
@@ -63,6 +70,40 @@ public class TokenResource {
         }
     }
 
+    /**
+     * Registers many devices at once (provisioning after app releases). Always 200 once the request
+     * is valid; each item's outcome is in results.
+     */
+    @POST
+    @Path("/register-batch")
+    public Response registerTokens(TokenBatchRequest request) {
+        try {
+            if (request == null || request.getTokens() == null || request.getTokens().isEmpty()) {
+                Map<String, String> errorResponse = new HashMap<>();
+                errorResponse.put("error", "tokens list is required");
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(errorResponse)
+                        .build();
+            }
+
+            TokenBatchResponse response = tokenStorageService.registerTokens(request.getTokens());
+            return Response.ok(response).build();
+
+        } catch (IllegalArgumentException e) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build();
+        } catch (Exception e) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", "Failed to register tokens: " + e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity(errorResponse)
+                    .build();
+        }
+    }
+
     @DELETE
     @Path("/unregister")
     public Response unregisterToken(@QueryParam("token") String deviceToken) {
@@ -99,19 +140,46 @@ public class TokenResource {
         }
     }
 
+    /**
+     * All of a user's tokens, or one page of them (in token order) when limit or cursor is given;
+     * nextCursor then fetches the next page and is null on the last one
+     */
     @GET
     @Path("/user/{userId}")
-    public Response getUserTokens(@PathParam("userId") String userId) {
+    public Response getUserTokens(
+            @PathParam("userId") String userId,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("cursor") String cursor
+    ) {
         try {
+            if (limit != null || cursor != null) {
+                KeysetPage page = tokenStorageService.getTokensForUserPage(userId, cursor,
+                        limit != null ? limit : KeysetPage.DEFAULT_PAGE_SIZE);
+
+                Map<String, Object> response = new HashMap<>();
+                response.put("userId", userId);
+                response.put("tokens", page.items());
+                response.put("tokenCount", page.items().size());
+                response.put("nextCursor", page.nextCursor());
+                return Response.ok(response).build();
+            }
+
             List<String> tokens = tokenStorageService.getTokensForUser(userId);
 
             Map<String, Object> response = new HashMap<>();
             response.put("userId", userId);
             response.put("tokens", tokens);
             response.put("tokenCount", tokens.size());
+            response.put("digestIntervalMinutes", tokenStorageService.getDigestInterval(userId));
 
             return Response.ok(response).build();
 
+        } catch (IllegalArgumentException e) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build();
         } catch (Exception e) {
             Map<String, String> errorResponse = new HashMap<>();
             errorResponse.put("error", "Failed to retrieve tokens: " + e.getMessage());
@@ -121,6 +189,75 @@ public class TokenResource {
         }
     }
 
+    /**
+     * Puts the user in digest mode: ticket notifications are collected and sent as one summary
+     * message every intervalMinutes instead of one push per event
+     */
+    @PUT
+    @Path("/user/{userId}/digest")
+    public Response setDigest(@PathParam("userId") String userId, DigestPreferenceRequest request) {
+        try {
+            if (request == null || request.getIntervalMinutes() == null) {
+                Map<String, String> errorResponse = new HashMap<>();
+                errorResponse.put("error", "intervalMinutes is required");
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(errorResponse)
+                        .build();
+            }
+
+            tokenStorageService.setDigestInterval(userId, request.getIntervalMinutes());
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Digest mode enabled");
+            response.put("userId", userId);
+            response.put("digestIntervalMinutes", request.getIntervalMinutes());
+            return Response.ok(response).build();
+
+        } catch (IllegalArgumentException e) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build();
+        }
+    }
+
+    /**
+     * Back to one push per event; anything already collected goes out with the next digest check
+     */
+    @DELETE
+    @Path("/user/{userId}/digest")
+    public Response clearDigest(@PathParam("userId") String userId) {
+        try {
+            tokenStorageService.setDigestInterval(userId, null);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("message", "Digest mode disabled");
+            response.put("userId", userId);
+            return Response.ok(response).build();
+
+        } catch (IllegalArgumentException e) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build();
+        }
+    }
+
+    /**
+     * Every token as NDJSON, streamed straight from the table (for audits)
+     */
+    @GET
+    @Path("/export")
+    @Produces(NDJSON)
+    public Response exportTokens() {
+        StreamingOutput stream = tokenStorageService::exportTokens;
+        return Response.ok(stream)
+                .header("Content-Disposition", "attachment; filename=\"tokens.ndjson\"")
+                .build();
+    }
+
     @GET
     @Path("/stats")
     public Response getStats() {
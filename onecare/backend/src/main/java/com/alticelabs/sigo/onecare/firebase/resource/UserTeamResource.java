@@ -1,11 +1,13 @@
 package com.alticelabs.sigo.onecare.firebase.resource;
 
 import com.alticelabs.sigo.onecare.firebase.dto.UserTeamRequest;
+import com.alticelabs.sigo.onecare.firebase.service.KeysetPage;
 import com.alticelabs.sigo.onecare.firebase.service.UserTeamService;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
 import java.util.HashMap;
 import java.util.List;
@@ -152,10 +154,30 @@ public class UserTeamResource {
         }
     }
 
+    /**
+     * All members of a team, or one page of them (in user order) when limit or cursor is given;
+     * nextCursor then fetches the next page and is null on the last one
+     */
     @GET
     @Path("/team/{teamId}/users")
-    public Response getUsersInTeam(@PathParam("teamId") String teamId) {
+    public Response getUsersInTeam(
+            @PathParam("teamId") String teamId,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("cursor") String cursor
+    ) {
         try {
+            if (limit != null || cursor != null) {
+                KeysetPage page = userTeamService.getUsersInTeamPage(teamId, cursor,
+                        limit != null ? limit : KeysetPage.DEFAULT_PAGE_SIZE);
+
+                Map<String, Object> response = new HashMap<>();
+                response.put("teamId", teamId);
+                response.put("users", page.items());
+                response.put("userCount", page.items().size());
+                response.put("nextCursor", page.nextCursor());
+                return Response.ok(response).build();
+            }
+
             List<String> users = userTeamService.getUsersInTeam(teamId);
 
             Map<String, Object> response = new HashMap<>();
@@ -165,6 +187,12 @@ public class UserTeamResource {
 
             return Response.ok(response).build();
 
+        } catch (IllegalArgumentException e) {
+            Map<String, String> errorResponse = new HashMap<>();
+            errorResponse.put("error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(errorResponse)
+                    .build();
         } catch (Exception e) {
             Map<String, String> errorResponse = new HashMap<>();
             errorResponse.put("error", "Failed to retrieve team users: " + e.getMessage());
@@ -196,6 +224,19 @@ public class UserTeamResource {
         }
     }
 
+    /**
+     * Every membership as NDJSON, streamed straight from the table (for audits)
+     */
+    @GET
+    @Path("/export")
+    @Produces(TokenResource.NDJSON)
+    public Response exportMemberships() {
+        StreamingOutput stream = userTeamService::exportMemberships;
+        return Response.ok(stream)
+                .header("Content-Disposition", "attachment; filename=\"user-teams.ndjson\"")
+                .build();
+    }
+
     @GET
     @Path("/stats")
     public Response getStats() {
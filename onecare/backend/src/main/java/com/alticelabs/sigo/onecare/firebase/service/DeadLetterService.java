@@ -0,0 +1,304 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.smallrye.reactive.messaging.kafka.api.OutgoingKafkaRecordMetadata;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
+import org.eclipse.microprofile.reactive.messaging.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dead-letter channel for work the pipeline could not complete: TTK records that failed to parse
+ * or to be queued, and outbox entries dropped after their last delivery attempt. Each record
+ * carries the failure in its headers (dlq-reason, dlq-error-class, dlq-error-message,
+ * dlq-failed-at) and dlq-kind tells how to replay it: "ttk" records are parsed and queued again
+ * by the Kafka consumer, "outbox" records (an {@link NotificationOutbox.Entry} as JSON) straight back into the
+ * outbox.
+ * Replays read the dead-letter topic with their own consumer group, at a fixed rate, so recovering
+ * from an FCM outage no longer means rewinding the main consumer group and flooding the pipeline.
+ */
+@ApplicationScoped
+public class DeadLetterService {
+
+    private static final Logger LOGGER = Logger.getLogger(DeadLetterService.class.getName());
+
+    public static final String REASON_PARSE_ERROR = "parse_error";
+    public static final String REASON_DISPATCH_ERROR = "dispatch_error";
+    public static final String REASON_DELIVERY_FAILED = "delivery_failed";
+    public static final String REASON_UNDECODABLE = "undecodable_entry";
+
+    static final String HEADER_KIND = "dlq-kind";
+    static final String HEADER_REASON = "dlq-reason";
+    static final String HEADER_ERROR_CLASS = "dlq-error-class";
+    static final String HEADER_ERROR_MESSAGE = "dlq-error-message";
+    static final String HEADER_FAILED_AT = "dlq-failed-at";
+    static final String KIND_TTK = "ttk";
+    static final String KIND_OUTBOX = "outbox";
+
+    // Header values are bytes on the wire; keep exception messages from blowing up record size
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 1000;
+
+    @Inject
+    @Channel("ttk-dlq")
+    Emitter<String> emitter;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    KafkaNotificationConsumer consumer;
+
+    @Inject
+    NotificationOutbox outbox;
+
+    @Inject
+    NotificationMetrics metrics;
+
+    @ConfigProperty(name = "dead-letter.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "kafka.bootstrap.servers")
+    String bootstrapServers;
+
+    @ConfigProperty(name = "mp.messaging.outgoing.ttk-dlq.topic", defaultValue = "sigo-ttk-onecare-dlq")
+    String topic;
+
+    @ConfigProperty(name = "dead-letter.replay.group-id", defaultValue = "onecare-dlq-replay")
+    String replayGroupId;
+
+    @ConfigProperty(name = "dead-letter.replay.rate-per-second", defaultValue = "10")
+    double defaultReplayRate;
+
+    private final Object replayLock = new Object();
+    private volatile ReplayStatus replay;
+    private volatile boolean stopping;
+
+    /**
+     * Progress of the current or last replay
+     */
+    public record ReplayStatus(
+            boolean running,
+            int limit,
+            double ratePerSecond,
+            int replayed,
+            int failed,
+            Instant startedAt,
+            Instant finishedAt,
+            String error
+    ) {
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stopping = true;
+    }
+
+    /**
+     * Dead-letters a raw TTK record
+     */
+    public void deadLetter(String payload, String reason, Throwable cause) {
+        send(KIND_TTK, null, payload, reason, cause);
+    }
+
+    /**
+     * Dead-letters an outbox entry that will not be attempted again
+     */
+    public void deadLetter(NotificationOutbox.Entry entry, Throwable cause) {
+        try {
+            send(KIND_OUTBOX, entry.ticketId(), objectMapper.writeValueAsString(entry), REASON_DELIVERY_FAILED, cause);
+        } catch (JsonProcessingException e) {
+            LOGGER.log(Level.SEVERE, "Cannot encode outbox entry of ticket " + entry.ticketId() + " for the dead-letter topic", e);
+        }
+    }
+
+    /**
+     * Dead-letters an outbox row that could not be decoded, as its stored columns. It cannot be
+     * replayed as an entry; the record is there to be inspected and fixed by hand.
+     */
+    public void deadLetterUndecodable(String ticketId, String row, Throwable cause) {
+        send(KIND_OUTBOX, ticketId, row, REASON_UNDECODABLE, cause);
+    }
+
+    private void send(String kind, String key, String payload, String reason, Throwable cause) {
+        if (!enabled) {
+            return;
+        }
+        RecordHeaders headers = new RecordHeaders();
+        header(headers, HEADER_KIND, kind);
+        header(headers, HEADER_REASON, reason);
+        header(headers, HEADER_FAILED_AT, Instant.now().toString());
+        if (cause != null) {
+            header(headers, HEADER_ERROR_CLASS, cause.getClass().getName());
+            String message = String.valueOf(cause.getMessage());
+            header(headers, HEADER_ERROR_MESSAGE, message.length() > MAX_ERROR_MESSAGE_LENGTH
+                    ? message.substring(0, MAX_ERROR_MESSAGE_LENGTH) : message);
+        }
+        OutgoingKafkaRecordMetadata.OutgoingKafkaRecordMetadataBuilder<String> metadata =
+                OutgoingKafkaRecordMetadata.<String>builder().withHeaders(headers);
+        if (key != null) {
+            metadata.withKey(key);
+        }
+        try {
+            emitter.send(Message.of(payload)
+                    .addMetadata(metadata.build())
+                    .withNack(error -> {
+                        LOGGER.log(Level.SEVERE, "Failed to write " + reason + " record to the dead-letter topic", error);
+                        return CompletableFuture.completedFuture(null);
+                    }));
+            metrics.deadLettered(reason);
+        } catch (RuntimeException e) {
+            // Emitter buffer full or channel down: the record is lost, but must not fail the caller
+            LOGGER.log(Level.SEVERE, "Cannot dead-letter " + reason + " record", e);
+        }
+    }
+
+    private static void header(RecordHeaders headers, String name, String value) {
+        headers.add(name, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String header(ConsumerRecord<?, ?> record, String name) {
+        Header header = record.headers().lastHeader(name);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    public ReplayStatus getReplayStatus() {
+        return replay;
+    }
+
+    /**
+     * Starts replaying up to limit dead-lettered records at ratePerSecond (the configured rate when
+     * not positive) on a background thread. Offsets of the replay group are committed as records are
+     * replayed, so the next replay continues where this one stopped. A record counts as replayed
+     * once it is back in the outbox; one that fails again is counted as failed and not written to
+     * the topic again (resetting the replay group's offsets retries it).
+     * @return the initial status, or null when a replay is already running
+     */
+    public ReplayStatus startReplay(int limit, double ratePerSecond) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        double rate = ratePerSecond > 0 ? ratePerSecond : defaultReplayRate;
+        synchronized (replayLock) {
+            if (replay != null && replay.running()) {
+                return null;
+            }
+            replay = new ReplayStatus(true, limit, rate, 0, 0, Instant.now(), null, null);
+            ReplayStatus started = replay;
+            Thread.ofPlatform().name("dlq-replay").daemon().start(() -> runReplay(started));
+            return started;
+        }
+    }
+
+    private void runReplay(ReplayStatus started) {
+        AtomicInteger replayed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        String error = null;
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / started.ratePerSecond());
+        long nextAt = System.nanoTime();
+
+        try (KafkaConsumer<String, String> kafka = new KafkaConsumer<>(replayConsumerConfig())) {
+            kafka.subscribe(List.of(topic));
+            int emptyPolls = 0;
+            while (!stopping && replayed.get() + failed.get() < started.limit() && emptyPolls < 3) {
+                ConsumerRecords<String, String> records = kafka.poll(Duration.ofSeconds(2));
+                if (records.isEmpty()) {
+                    emptyPolls++;
+                    continue;
+                }
+                emptyPolls = 0;
+                Map<TopicPartition, OffsetAndMetadata> done = new LinkedHashMap<>();
+                for (ConsumerRecord<String, String> record : records) {
+                    if (stopping || replayed.get() + failed.get() >= started.limit()) {
+                        break;
+                    }
+                    long wait = nextAt - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextAt = Math.max(nextAt, System.nanoTime() - intervalNanos) + intervalNanos;
+                    if (replay(record)) {
+                        replayed.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                    done.put(new TopicPartition(record.topic(), record.partition()),
+                            new OffsetAndMetadata(record.offset() + 1));
+                    replay = new ReplayStatus(true, started.limit(), started.ratePerSecond(),
+                            replayed.get(), failed.get(), started.startedAt(), null, null);
+                }
+                if (!done.isEmpty()) {
+                    kafka.commitSync(done);
+                }
+                // Rewind to the first record not replayed, so a stop in the middle of a poll loses nothing
+                for (TopicPartition partition : records.partitions()) {
+                    OffsetAndMetadata next = done.get(partition);
+                    kafka.seek(partition, next != null ? next.offset() : records.records(partition).get(0).offset());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "interrupted";
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Dead-letter replay failed", e);
+            error = e.getMessage();
+        }
+        replay = new ReplayStatus(false, started.limit(), started.ratePerSecond(),
+                replayed.get(), failed.get(), started.startedAt(), Instant.now(), error);
+        LOGGER.info(String.format("Dead-letter replay finished: %d replayed, %d failed", replayed.get(), failed.get()));
+    }
+
+    private boolean replay(ConsumerRecord<String, String> record) {
+        try {
+            if (KIND_OUTBOX.equals(header(record, HEADER_KIND))) {
+                NotificationOutbox.Entry entry = objectMapper.readValue(record.value(), NotificationOutbox.Entry.class);
+                // Queued as a new entry: fresh attempts and delivery lag measured from now
+                outbox.enqueue(List.of(entry));
+            } else {
+                consumer.process(List.of(record.value()));
+            }
+            metrics.deadLetterReplayed();
+            return true;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to replay dead-letter record at offset " + record.offset(), e);
+            return false;
+        }
+    }
+
+    private Properties replayConsumerConfig() {
+        Properties config = new Properties();
+        config.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        config.put(ConsumerConfig.GROUP_ID_CONFIG, replayGroupId);
+        config.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        config.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        config.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, "100");
+        config.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        config.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        return config;
+    }
+}
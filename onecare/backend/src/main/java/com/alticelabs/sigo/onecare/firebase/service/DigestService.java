@@ -0,0 +1,246 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.Startup;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Digest mode for heavy recipients (see {@link TokenStorageService#setDigestInterval}).
+ * Ticket notifications for a digest user are not sent to their devices; the event is buffered in
+ * the digest_buffer table instead, and once the oldest buffered event is intervalMinutes old the
+ * user gets one summary message through the outbox. Their fan-out is then bounded by
+ * intervals × tokens instead of events × tokens.
+ * Like ticket notifications the summary is data-only and localized by the client: type "digest",
+ * titleKey/bodyKey and the eventCount/ticketCount arguments of the body, plus the ticket list.
+ */
+@Startup
+@ApplicationScoped
+public class DigestService {
+
+    private static final Logger LOGGER = Logger.getLogger(DigestService.class.getName());
+
+    // FCM data payloads are limited to 4 KB; the summary lists the most recent tickets only
+    private static final int MAX_TICKETS_PER_DIGEST = 20;
+    static final String TYPE_DIGEST = "digest";
+    static final String DIGEST_TITLE_KEY = "digest_title";
+    static final String DIGEST_BODY_KEY = "digest_body";
+
+    @Inject
+    SqliteConnectionPool pool;
+
+    @Inject
+    TokenStorageService tokenStorageService;
+
+    @Inject
+    NotificationOutbox outbox;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "digest.check-interval-seconds", defaultValue = "60")
+    long checkIntervalSeconds;
+
+    private ScheduledExecutorService scheduler;
+
+    /** One buffered ticket event for a digest user */
+    record DigestEvent(String userId, String ticketId, String titleKey, String bodyKey) {
+    }
+
+    @PostConstruct
+    void init() {
+        try {
+            pool.write(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS digest_buffer (
+                          id INTEGER PRIMARY KEY AUTOINCREMENT,
+                          user_id TEXT NOT NULL,
+                          ticket_id TEXT NOT NULL,
+                          title_key TEXT,
+                          body_key TEXT,
+                          queued_at INTEGER NOT NULL
+                        )
+                        """);
+                    stmt.execute("CREATE INDEX IF NOT EXISTS idx_digest_buffer_user ON digest_buffer(user_id, queued_at)");
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.severe("Failed to initialize digest buffer: " + e.getMessage());
+            throw new IllegalStateException("Cannot initialize digest buffer", e);
+        }
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("digest-sender").daemon().factory());
+        scheduler.scheduleWithFixedDelay(this::sendDueDigests, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes the tokens of digest users from a notification's audience and records the event for
+     * each of those users (once per user) in events.
+     * @return the tokens that still get the notification now
+     */
+    List<String> divert(KafkaNotificationConsumer.TicketNotification notification, List<String> tokens,
+                        List<DigestEvent> events) {
+        if (!tokenStorageService.hasDigestUsers()) {
+            return tokens;
+        }
+        List<String> immediate = new ArrayList<>(tokens.size());
+        Map<String, Boolean> digestUsers = new HashMap<>();
+        for (String token : tokens) {
+            String userId = tokenStorageService.getUserIdForToken(token);
+            if (userId == null || tokenStorageService.getDigestInterval(userId) == null) {
+                immediate.add(token);
+            } else if (digestUsers.putIfAbsent(userId, Boolean.TRUE) == null) {
+                events.add(new DigestEvent(userId, notification.ticketId(), notification.titleKey(), notification.bodyKey()));
+            }
+        }
+        return immediate;
+    }
+
+    /**
+     * Stores the events of one Kafka batch in a single transaction
+     */
+    void buffer(List<DigestEvent> events) throws SQLException {
+        if (events.isEmpty()) {
+            return;
+        }
+        final String sql = "INSERT INTO digest_buffer (user_id, ticket_id, title_key, body_key, queued_at) " +
+                "VALUES (?, ?, ?, ?, ?)";
+        long now = System.currentTimeMillis();
+        pool.writeInTransaction(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                for (DigestEvent event : events) {
+                    ps.setString(1, event.userId());
+                    ps.setString(2, event.ticketId());
+                    ps.setString(3, event.titleKey());
+                    ps.setString(4, event.bodyKey());
+                    ps.setLong(5, now);
+                    ps.addBatch();
+                }
+                return ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Sends a summary to every user whose oldest buffered event is at least their interval old.
+     * Users who left digest mode get what is left in their buffer right away.
+     */
+    void sendDueDigests() {
+        try {
+            Map<String, Long> oldestByUser = pool.read(connection -> {
+                Map<String, Long> oldest = new HashMap<>();
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT user_id, MIN(queued_at) FROM digest_buffer GROUP BY user_id")) {
+                    while (rs.next()) {
+                        oldest.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+                return oldest;
+            });
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Long> entry : oldestByUser.entrySet()) {
+                Integer interval = tokenStorageService.getDigestInterval(entry.getKey());
+                if (interval == null || now - entry.getValue() >= TimeUnit.MINUTES.toMillis(interval)) {
+                    sendDigest(entry.getKey());
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to send digests", e);
+        }
+    }
+
+    private void sendDigest(String userId) throws SQLException, JsonProcessingException {
+        final String select = "SELECT id, ticket_id, title_key, body_key FROM digest_buffer WHERE user_id = ? ORDER BY id";
+        List<Long> ids = new ArrayList<>();
+        // Latest event per ticket, most recent tickets last
+        LinkedHashMap<String, Map<String, String>> tickets = new LinkedHashMap<>();
+        pool.read(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(select)) {
+                ps.setString(1, userId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        ids.add(rs.getLong(1));
+                        String ticketId = rs.getString(2);
+                        Map<String, String> previous = tickets.remove(ticketId);
+                        String bodyKey = previous == null ? rs.getString(4)
+                                : TtkChangeClassifier.higherPriorityBodyKey(previous.get("bodyKey"), rs.getString(4));
+                        String titleKey = previous == null ? rs.getString(3)
+                                : TtkChangeClassifier.mergedTitleKey(previous.get("titleKey"), rs.getString(3));
+                        Map<String, String> ticket = new LinkedHashMap<>();
+                        ticket.put("ticketId", ticketId);
+                        ticket.put("titleKey", titleKey);
+                        ticket.put("bodyKey", bodyKey);
+                        tickets.put(ticketId, ticket);
+                    }
+                }
+            }
+            return null;
+        });
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        List<String> tokens = tokenStorageService.getTokensForUser(userId);
+        List<NotificationOutbox.Entry> entries = List.of();
+        if (!tokens.isEmpty()) {
+            List<Map<String, String>> recent = new ArrayList<>(tickets.values());
+            if (recent.size() > MAX_TICKETS_PER_DIGEST) {
+                recent = recent.subList(recent.size() - MAX_TICKETS_PER_DIGEST, recent.size());
+            }
+            Map<String, String> data = new HashMap<>();
+            data.put("type", TYPE_DIGEST);
+            data.put("titleKey", DIGEST_TITLE_KEY);
+            data.put("bodyKey", DIGEST_BODY_KEY);
+            data.put("eventCount", String.valueOf(ids.size()));
+            data.put("ticketCount", String.valueOf(tickets.size()));
+            data.put("tickets", objectMapper.writeValueAsString(recent));
+            entries = List.of(NotificationOutbox.Entry.forTokens("digest:" + userId, tokens, data));
+        }
+
+        // The outbox lives in the same database, so the digest is queued and its buffer cleared atomically:
+        // a failure in between can neither lose the events nor send them twice
+        long lastId = ids.get(ids.size() - 1);
+        outbox.enqueue(entries, connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "DELETE FROM digest_buffer WHERE user_id = ? AND id <= ?")) {
+                ps.setString(1, userId);
+                ps.setLong(2, lastId);
+                return ps.executeUpdate();
+            }
+        });
+        LOGGER.info(String.format("Queued digest for user %s: %d events on %d tickets", userId, ids.size(), tickets.size()));
+    }
+}
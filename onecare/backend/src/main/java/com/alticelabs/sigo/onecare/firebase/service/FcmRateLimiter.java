@@ -0,0 +1,203 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every FCM send, measured in messages (one per token of a multicast, one per
+ * topic message), so bursts from Kafka and REST together stay under the project quota instead of
+ * running into QUOTA_EXCEEDED.
+ * Acquiring never blocks a thread: when the bucket is short the caller gets a future that a single
+ * scheduler thread completes once enough messages have been refilled. Waiting callers are served
+ * in turn (one request of each caller type at a time), so a large Kafka backlog cannot starve REST
+ * sends and vice versa.
+ * Created at startup so that a rate or burst that could never refill the bucket (and would park
+ * every send forever) stops the application instead.
+ */
+@Startup
+@ApplicationScoped
+public class FcmRateLimiter {
+
+    /** Who is sending; each gets its own queue and the queues are served round-robin */
+    public enum Caller {
+        KAFKA, REST;
+
+        final String tag = name().toLowerCase();
+    }
+
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+    private static final Caller[] CALLERS = Caller.values();
+
+    @ConfigProperty(name = "firebase.rate-limit.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "firebase.rate-limit.messages-per-second", defaultValue = "5000")
+    double messagesPerSecond;
+
+    @ConfigProperty(name = "firebase.rate-limit.burst", defaultValue = "1000")
+    int burst;
+
+    @Inject
+    NotificationMetrics metrics;
+
+    private record Waiter(Caller caller, int messages, long enqueuedAt, CompletableFuture<Void> granted) {
+    }
+
+    private final Object lock = new Object();
+    private final Map<Caller, ArrayDeque<Waiter>> queues = new EnumMap<>(Caller.class);
+    private ScheduledExecutorService scheduler;
+    private double available;
+    private long refilledAt;
+    private int nextCaller;
+    private boolean drainScheduled;
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        if (!(messagesPerSecond > 0)) {
+            throw new IllegalStateException("firebase.rate-limit.messages-per-second must be positive, was "
+                    + messagesPerSecond + " (set firebase.rate-limit.enabled=false to send unthrottled)");
+        }
+        if (burst <= 0) {
+            throw new IllegalStateException("firebase.rate-limit.burst must be positive, was " + burst);
+        }
+        for (Caller caller : CALLERS) {
+            queues.put(caller, new ArrayDeque<>());
+        }
+        available = burst;
+        refilledAt = System.nanoTime();
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("fcm-rate-limiter").daemon().factory());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        List<Waiter> pending = new ArrayList<>();
+        synchronized (lock) {
+            queues.values().forEach(pending::addAll);
+            queues.values().forEach(ArrayDeque::clear);
+        }
+        pending.forEach(w -> w.granted().completeExceptionally(new IllegalStateException("FCM rate limiter stopped")));
+    }
+
+    /**
+     * Reserves the given number of messages. Requests larger than the burst are let through once the
+     * bucket is full and leave it in debt, so a full 500-token chunk never waits forever.
+     * @return a future completed when the messages may be sent
+     */
+    public CompletableFuture<Void> acquire(Caller caller, int messages) {
+        if (!enabled || messages <= 0) {
+            return GRANTED;
+        }
+        long now = System.nanoTime();
+        Waiter waiter;
+        synchronized (lock) {
+            // shutdown() fails whatever is queued once the scheduler has stopped, so nothing may queue after that
+            if (scheduler.isShutdown()) {
+                return CompletableFuture.failedFuture(new IllegalStateException("FCM rate limiter stopped"));
+            }
+            refill(now);
+            if (nothingQueued() && available >= Math.min(messages, burst)) {
+                available -= messages;
+                waiter = null;
+            } else {
+                waiter = new Waiter(caller, messages, now, new CompletableFuture<>());
+                queues.get(caller).add(waiter);
+                scheduleDrain();
+            }
+        }
+        if (waiter == null) {
+            metrics.rateLimitWait(caller.tag, 0);
+            return GRANTED;
+        }
+        return waiter.granted();
+    }
+
+    private void drain() {
+        List<Waiter> ready = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (lock) {
+            drainScheduled = false;
+            refill(now);
+            int idle = 0;
+            while (idle < CALLERS.length) {
+                Waiter head = queues.get(CALLERS[nextCaller]).peek();
+                if (head == null) {
+                    nextCaller = (nextCaller + 1) % CALLERS.length;
+                    idle++;
+                    continue;
+                }
+                if (available < Math.min(head.messages(), burst)) {
+                    break;
+                }
+                available -= head.messages();
+                ready.add(queues.get(CALLERS[nextCaller]).poll());
+                nextCaller = (nextCaller + 1) % CALLERS.length;
+                idle = 0;
+            }
+            if (!nothingQueued()) {
+                scheduleDrain();
+            }
+        }
+        for (Waiter waiter : ready) {
+            metrics.rateLimitWait(waiter.caller().tag, now - waiter.enqueuedAt());
+            waiter.granted().complete(null);
+        }
+    }
+
+    /**
+     * Schedules the next drain for when the caller whose turn it is can be served. Called with the lock held.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        Waiter head = null;
+        for (int i = 0; head == null && i < CALLERS.length; i++) {
+            head = queues.get(CALLERS[(nextCaller + i) % CALLERS.length]).peek();
+        }
+        double missing = head == null ? 0 : Math.min(head.messages(), burst) - available;
+        long delayNanos = missing <= 0 ? 0 : (long) Math.ceil(missing / messagesPerSecond * 1_000_000_000L);
+        drainScheduled = true;
+        try {
+            scheduler.schedule(this::drain, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping: shutdown() fails the queued waiters
+        }
+    }
+
+    private void refill(long now) {
+        available = Math.min(burst, available + (now - refilledAt) * messagesPerSecond / 1_000_000_000L);
+        refilledAt = now;
+    }
+
+    private boolean nothingQueued() {
+        for (ArrayDeque<Waiter> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,31 +2,91 @@ package com.alticelabs.sigo.onecare.firebase.service;
 
 import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
 import com.alticelabs.sigo.onecare.firebase.dto.TopicNotificationResponse;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.ErrorCode;
 import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseException;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.messaging.*;
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class FirebaseService {
 
     private static final Logger LOGGER = Logger.getLogger(FirebaseService.class.getName());
-    private static final String ANDROID_CHANNEL_ID = "sigo_default_channel";
+    // FCM rejects sendEachForMulticast calls with more than 500 tokens
+    private static final int FCM_MULTICAST_LIMIT = 500;
+    private static final String SEND_MULTICAST = "multicast";
+    private static final String SEND_TOPIC = "topic";
+    // FCM accepts at most 1000 tokens per topic (un)subscribe call and 5 topics per condition
+    private static final int TOPIC_MANAGEMENT_LIMIT = 1000;
+    static final int CONDITION_TOPIC_LIMIT = 5;
+    // Failures worth sending again; RESOURCE_EXHAUSTED is the generic code for QUOTA_EXCEEDED
+    private static final Set<String> RETRYABLE_ERROR_CODES = Set.of(
+            MessagingErrorCode.UNAVAILABLE.name(),
+            MessagingErrorCode.INTERNAL.name(),
+            MessagingErrorCode.QUOTA_EXCEEDED.name(),
+            ErrorCode.RESOURCE_EXHAUSTED.name());
+
+    @Inject
+    NotificationMetrics metrics;
+
+    @Inject
+    FcmRateLimiter rateLimiter;
 
     @ConfigProperty(name = "firebase.service.account.path")
     String serviceAccountPath;
 
+    @ConfigProperty(name = "firebase.multicast.chunk-size", defaultValue = "500")
+    int multicastChunkSize;
+
+    @ConfigProperty(name = "firebase.multicast.max-parallelism", defaultValue = "4")
+    int multicastMaxParallelism;
+
+    @ConfigProperty(name = "firebase.retry.max-attempts", defaultValue = "3")
+    int retryMaxAttempts;
+
+    @ConfigProperty(name = "firebase.retry.initial-backoff-ms", defaultValue = "500")
+    long retryInitialBackoffMs;
+
+    @ConfigProperty(name = "firebase.retry.max-backoff-ms", defaultValue = "10000")
+    long retryMaxBackoffMs;
+
+    // Shared platform configs for outgoing messages
+    final MessageTemplates templates = new MessageTemplates();
+
+    private FirebaseMessaging messaging;
+
     @PostConstruct
     public void initialize() {
         try {
@@ -49,8 +109,19 @@ public class FirebaseService {
             LOGGER.severe("Failed to initialize Firebase: " + e.getMessage());
             throw new RuntimeException("Failed to initialize Firebase", e);
         }
+        start(FirebaseMessaging.getInstance());
+    }
+
+    /**
+     * Binds the service to a messaging instance (also used by the benchmarks with a stubbed client)
+     */
+    void start(FirebaseMessaging messaging) {
+        this.messaging = messaging;
     }
 
+    /**
+     * Blocking variant of {@link #sendMulticastNotificationAsync}
+     */
     public NotificationResponse sendMulticastNotification(
             List<String> tokens,
             String title,
@@ -62,206 +133,517 @@ public class FirebaseService {
             List<String> bodyLocArgs
     ) {
         try {
-            if (tokens == null || tokens.isEmpty()) {
-                throw new IllegalArgumentException("Device tokens list cannot be empty");
+            return sendMulticastNotificationAsync(FcmRateLimiter.Caller.REST, tokens, title, body, data,
+                    titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
             }
+            throw new RuntimeException("Failed to send notifications", cause);
+        }
+    }
 
-            MulticastMessage.Builder messageBuilder = MulticastMessage.builder()
-                    .addAllTokens(tokens);
+    /**
+     * {@link #sendMulticastNotificationAsync(FcmRateLimiter.Caller, List, String, String, Map, String, List, String, List)}
+     * on behalf of a REST caller
+     */
+    public CompletionStage<NotificationResponse> sendMulticastNotificationAsync(
+            List<String> tokens,
+            String title,
+            String body,
+            Map<String, String> data,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+        return sendMulticastNotificationAsync(FcmRateLimiter.Caller.REST, tokens, title, body, data,
+                titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs);
+    }
 
-            // Only set notification content if there's something to display
-            boolean hasLocKeys = !isBlank(titleLocKey) || !isBlank(bodyLocKey);
-            boolean hasContent = !isBlank(title) || !isBlank(body);
+    /**
+     * Sends to every token with sendEachForMulticastAsync, split in chunks of at most
+     * multicastChunkSize tokens. No thread is held while FCM responds; chunks are launched as
+     * earlier ones complete so that at most multicastMaxParallelism requests are in flight for this
+     * call. Every chunk (and retry) first takes its messages from the shared {@link FcmRateLimiter}.
+     * Transient failures are retried per token (see {@link #sendWithRetry}).
+     */
+    public CompletionStage<NotificationResponse> sendMulticastNotificationAsync(
+            FcmRateLimiter.Caller caller,
+            List<String> tokens,
+            String title,
+            String body,
+            Map<String, String> data,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+        if (tokens == null || tokens.isEmpty()) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Device tokens list cannot be empty"));
+        }
 
-            if (!hasLocKeys && hasContent) {
-                messageBuilder.setNotification(Notification.builder()
-                        .setTitle(title)
-                        .setBody(body)
-                        .build());
-            }
+        List<List<String>> chunks = partitionTokens(tokens);
+        MulticastTemplate template = multicastTemplate(
+                title, body, data, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs);
 
-            // Only set platform-specific notification configs if there's content to display
-            // Data-only messages should not have notification configs to avoid OS-level notifications
-            if (hasLocKeys || hasContent) {
-                messageBuilder.setAndroidConfig(
-                        buildAndroidConfig(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs));
-                messageBuilder.setApnsConfig(
-                        buildApnsConfig(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs));
+        List<CompletableFuture<List<NotificationResponse.NotificationResult>>> chunkFutures =
+                new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            chunkFutures.add(new CompletableFuture<>());
+        }
+        AtomicInteger nextChunk = new AtomicInteger();
+        int window = Math.min(Math.max(1, multicastMaxParallelism), chunks.size());
+        for (int i = 0; i < window; i++) {
+            launchNextChunk(caller, template, chunks, chunkFutures, nextChunk);
+        }
+
+        CompletableFuture<?>[] settled = chunkFutures.stream()
+                .map(f -> f.handle((results, error) -> null))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(settled)
+                .thenApply(ignored -> mergeChunkResponses(chunks, chunkFutures));
+    }
+
+    private void launchNextChunk(
+            FcmRateLimiter.Caller caller,
+            MulticastTemplate template,
+            List<List<String>> chunks,
+            List<CompletableFuture<List<NotificationResponse.NotificationResult>>> chunkFutures,
+            AtomicInteger nextChunk
+    ) {
+        int index = nextChunk.getAndIncrement();
+        if (index >= chunks.size()) {
+            return;
+        }
+        CompletableFuture<List<NotificationResponse.NotificationResult>> target = chunkFutures.get(index);
+        sendWithRetry(caller, template, chunks.get(index), 1).whenComplete((results, error) -> {
+            if (error != null) {
+                target.completeExceptionally(unwrap(error));
             } else {
-                // Data-only message - set high priority to ensure delivery
-                messageBuilder.setAndroidConfig(AndroidConfig.builder()
-                        .setPriority(AndroidConfig.Priority.HIGH)
-                        .build());
-                // iOS: set content-available for background delivery
-                messageBuilder.setApnsConfig(ApnsConfig.builder()
-                        .setAps(Aps.builder()
-                                .setContentAvailable(true)
-                                .build())
-                        .build());
+                target.complete(results);
             }
+            launchNextChunk(caller, template, chunks, chunkFutures, nextChunk);
+        });
+    }
 
-            if (data != null && !data.isEmpty()) {
-                messageBuilder.putAllData(data);
+    /**
+     * Sends one chunk. Tokens that fail with a transient error (UNAVAILABLE, INTERNAL, QUOTA_EXCEEDED)
+     * are sent again, on their own, after a jittered exponential backoff that also honors the
+     * Retry-After FCM returned; at most retryMaxAttempts sends per token. A request that fails as a
+     * whole is retried the same way and only then completes the future exceptionally.
+     */
+    private CompletableFuture<List<NotificationResponse.NotificationResult>> sendWithRetry(
+            FcmRateLimiter.Caller caller,
+            MulticastTemplate template,
+            List<String> tokens,
+            int attempt
+    ) {
+        CompletableFuture<BatchResponse> sent = rateLimiter.acquire(caller, tokens.size())
+                .thenCompose(ignored -> sendTimedAsync(template.forTokens(tokens)));
+        return sent.handle((response, error) -> {
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                long delay = retryDelayMillis(cause, attempt);
+                if (delay < 0) {
+                    return CompletableFuture.<List<NotificationResponse.NotificationResult>>failedFuture(cause);
+                }
+                LOGGER.warning(String.format("Multicast of %d tokens failed (%s), retry %d in %d ms",
+                        tokens.size(), errorCode(cause), attempt, delay));
+                metrics.retried(tokens.size());
+                return retryLater(caller, template, tokens, attempt, delay);
             }
 
-            MulticastMessage message = messageBuilder.build();
-            BatchResponse response = FirebaseMessaging.getInstance().sendEachForMulticast(message);
+            List<NotificationResponse.NotificationResult> results = buildNotificationResults(tokens, response);
+            List<Integer> retryIndexes = new ArrayList<>();
+            long delay = -1;
+            List<SendResponse> responses = response.getResponses();
+            for (int i = 0; i < responses.size(); i++) {
+                long tokenDelay = responses.get(i).isSuccessful()
+                        ? -1 : retryDelayMillis(responses.get(i).getException(), attempt);
+                if (tokenDelay >= 0) {
+                    retryIndexes.add(i);
+                    delay = Math.max(delay, tokenDelay);
+                }
+            }
+            if (retryIndexes.isEmpty()) {
+                return CompletableFuture.completedFuture(results);
+            }
 
-            LOGGER.info(String.format("Successfully sent %d notifications, %d failed",
-                    response.getSuccessCount(), response.getFailureCount()));
+            List<String> retryTokens = new ArrayList<>(retryIndexes.size());
+            retryIndexes.forEach(i -> retryTokens.add(tokens.get(i)));
+            LOGGER.warning(String.format("%d of %d tokens failed transiently, retry %d in %d ms",
+                    retryTokens.size(), tokens.size(), attempt, delay));
+            metrics.retried(retryTokens.size());
+            return retryLater(caller, template, retryTokens, attempt, delay).handle((retried, retryError) -> {
+                // When the retry request itself failed the tokens keep the failure of this attempt
+                if (retried != null) {
+                    for (int i = 0; i < retryIndexes.size(); i++) {
+                        results.set(retryIndexes.get(i), retried.get(i));
+                    }
+                }
+                return results;
+            });
+        }).thenCompose(Function.identity());
+    }
 
-            return buildNotificationResponse(tokens, response);
+    private CompletableFuture<List<NotificationResponse.NotificationResult>> retryLater(
+            FcmRateLimiter.Caller caller,
+            MulticastTemplate template,
+            List<String> tokens,
+            int attempt,
+            long delayMillis
+    ) {
+        return CompletableFuture.runAsync(() -> { },
+                        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS))
+                .thenCompose(ignored -> sendWithRetry(caller, template, tokens, attempt + 1));
+    }
 
-        } catch (FirebaseMessagingException e) {
-            LOGGER.severe("Failed to send notifications: " + e.getMessage());
-            throw new RuntimeException("Failed to send notifications", e);
+    /**
+     * Delay before the next attempt, or -1 when the error is not transient, attempts are exhausted
+     * or FCM asked to wait longer than retryMaxBackoffMs.
+     */
+    long retryDelayMillis(Throwable error, int attempt) {
+        if (attempt >= retryMaxAttempts || !RETRYABLE_ERROR_CODES.contains(errorCode(error))) {
+            return -1;
+        }
+        long backoff = Math.min(retryMaxBackoffMs, retryInitialBackoffMs << Math.min(attempt - 1, 20));
+        // Equal jitter: half fixed, half random, so concurrent retries spread out
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        long retryAfter = retryAfterMillis(error);
+        if (retryAfter > retryMaxBackoffMs) {
+            return -1;
         }
+        return Math.max(delay, retryAfter);
     }
 
-    public TopicNotificationResponse sendTopicNotification(
-            String topic,
-            String title,
-            String body,
-            Map<String, String> data,
-            String titleLocKey,
-            List<String> titleLocArgs,
-            String bodyLocKey,
-            List<String> bodyLocArgs
-    ) {
+    /**
+     * Retry-After header of the FCM response (delta-seconds or HTTP date), 0 when absent
+     */
+    private static long retryAfterMillis(Throwable error) {
+        if (!(error instanceof FirebaseException firebaseException) || firebaseException.getHttpResponse() == null) {
+            return 0;
+        }
+        Object header = firebaseException.getHttpResponse().getHeaders().get("retry-after");
+        if (header instanceof List<?> values) {
+            header = values.isEmpty() ? null : values.get(0);
+        }
+        if (header == null) {
+            return 0;
+        }
+        String value = header.toString().trim();
         try {
-            if (isBlank(topic)) {
-                throw new IllegalArgumentException("Topic cannot be empty");
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, Duration.between(Instant.now(),
+                        ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)).toMillis());
+            } catch (DateTimeParseException ignored) {
+                return 0;
             }
+        }
+    }
 
-            Message.Builder messageBuilder = Message.builder()
-                    .setTopic(topic);
+    private CompletableFuture<BatchResponse> sendTimedAsync(MulticastMessage message) {
+        long start = System.nanoTime();
+        return toCompletableFuture(messaging.sendEachForMulticastAsync(message))
+                .whenComplete((response, error) -> metrics.sendLatency(SEND_MULTICAST, error == null, start));
+    }
 
-            boolean hasLocKeys = !isBlank(titleLocKey) || !isBlank(bodyLocKey);
-            boolean hasContent = !isBlank(title) || !isBlank(body);
+    /**
+     * Merges the per-token results of every chunk back in the original token order. A chunk whose
+     * request failed as a whole is reported as failed for all of its tokens and listed in
+     * {@link NotificationResponse#getUnsentTokens()}; the merge only throws when every chunk failed.
+     */
+    private NotificationResponse mergeChunkResponses(
+            List<List<String>> chunks,
+            List<CompletableFuture<List<NotificationResponse.NotificationResult>>> futures
+    ) {
+        List<NotificationResponse.NotificationResult> results = new ArrayList<>();
+        List<String> unsentTokens = new ArrayList<>();
+        int failedChunks = 0;
+        Throwable firstFailure = null;
+
+        for (int i = 0; i < futures.size(); i++) {
+            List<String> chunk = chunks.get(i);
+            try {
+                results.addAll(futures.get(i).join());
+            } catch (CompletionException e) {
+                Throwable cause = unwrap(e);
+                LOGGER.severe(String.format("Failed to send notification chunk %d/%d (%d tokens): %s",
+                        i + 1, chunks.size(), chunk.size(), cause.getMessage()));
+                if (firstFailure == null) {
+                    firstFailure = cause;
+                }
+                failedChunks++;
+                unsentTokens.addAll(chunk);
+                String errorCode = errorCode(cause);
+                for (String token : chunk) {
+                    results.add(new NotificationResponse.NotificationResult(
+                            token, false, null, cause.getMessage(), errorCode));
+                }
+            }
+        }
 
-            if (!hasLocKeys && hasContent) {
-                messageBuilder.setNotification(Notification.builder()
-                        .setTitle(title)
-                        .setBody(body)
-                        .build());
+        // Counted here, once per token, so the outcome of the last attempt is what the metric sees
+        metrics.sendResults(results);
+        if (failedChunks == chunks.size()) {
+            throw new RuntimeException("Failed to send notifications", firstFailure);
+        }
+
+        int successCount = 0;
+        for (NotificationResponse.NotificationResult result : results) {
+            if (result.isSuccess()) {
+                successCount++;
             }
+        }
+        int failureCount = results.size() - successCount;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Successfully sent %d notifications, %d failed (%d chunks)",
+                    successCount, failureCount, chunks.size()));
+        }
 
-            // Only set platform-specific notification configs if there's notification content
-            // Data-only messages should not have notification configs to avoid duplicate notifications
-            if (hasLocKeys || hasContent) {
-                messageBuilder.setAndroidConfig(
-                        buildAndroidConfig(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs));
-                messageBuilder.setApnsConfig(
-                        buildApnsConfig(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs));
-            } else {
-                // Data-only message - set high priority to ensure delivery
-                messageBuilder.setAndroidConfig(AndroidConfig.builder()
-                        .setPriority(AndroidConfig.Priority.HIGH)
-                        .build());
-                // iOS: set content-available for background delivery
-                messageBuilder.setApnsConfig(ApnsConfig.builder()
-                        .setAps(Aps.builder()
-                                .setContentAvailable(true)
-                                .build())
-                        .build());
+        NotificationResponse response = new NotificationResponse(successCount, failureCount, results);
+        response.setUnsentTokens(unsentTokens);
+        return response;
+    }
+
+    private static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> apiFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        ApiFutures.addCallback(apiFuture, new ApiFutureCallback<>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
             }
 
-            if (data != null && !data.isEmpty()) {
-                messageBuilder.putAllData(data);
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
             }
+        }, Runnable::run);
+        return future;
+    }
 
-            Message message = messageBuilder.build();
-            String messageId = FirebaseMessaging.getInstance().send(message);
-            LOGGER.info(String.format("Successfully sent topic notification to %s", topic));
-            return new TopicNotificationResponse(topic, messageId);
+    private static Throwable unwrap(Throwable error) {
+        Throwable current = error;
+        while ((current instanceof CompletionException || current instanceof ExecutionException)
+                && current.getCause() != null) {
+            current = current.getCause();
+        }
+        return current;
+    }
 
-        } catch (FirebaseMessagingException e) {
-            LOGGER.severe("Failed to send topic notification: " + e.getMessage());
-            throw new RuntimeException("Failed to send topic notification", e);
+    List<List<String>> partitionTokens(List<String> tokens) {
+        int chunkSize = Math.max(1, Math.min(multicastChunkSize, FCM_MULTICAST_LIMIT));
+        if (tokens.size() <= chunkSize) {
+            return List.of(tokens);
         }
+        List<List<String>> chunks = new ArrayList<>((tokens.size() + chunkSize - 1) / chunkSize);
+        for (int from = 0; from < tokens.size(); from += chunkSize) {
+            chunks.add(tokens.subList(from, Math.min(from + chunkSize, tokens.size())));
+        }
+        return chunks;
     }
 
-    private AndroidConfig buildAndroidConfig(
+    List<MulticastMessage> buildMulticastMessages(
+            List<List<String>> chunks,
             String title,
             String body,
+            Map<String, String> data,
             String titleLocKey,
             List<String> titleLocArgs,
             String bodyLocKey,
             List<String> bodyLocArgs
     ) {
-        AndroidNotification.Builder notificationBuilder = AndroidNotification.builder();
-
-        // Only set static title/body if no localization keys are provided
-        // When localization keys are set, they take precedence
-        if (!isBlank(titleLocKey)) {
-            notificationBuilder.setTitleLocalizationKey(titleLocKey);
-            if (titleLocArgs != null && !titleLocArgs.isEmpty()) {
-                notificationBuilder.addAllTitleLocalizationArgs(titleLocArgs);
-            }
-        } else if (!isBlank(title)) {
-            notificationBuilder.setTitle(title);
+        MulticastTemplate template = multicastTemplate(
+                title, body, data, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs);
+        List<MulticastMessage> messages = new ArrayList<>(chunks.size());
+        for (List<String> chunk : chunks) {
+            messages.add(template.forTokens(chunk));
         }
+        return messages;
+    }
 
-        if (!isBlank(bodyLocKey)) {
-            notificationBuilder.setBodyLocalizationKey(bodyLocKey);
-            if (bodyLocArgs != null && !bodyLocArgs.isEmpty()) {
-                notificationBuilder.addAllBodyLocalizationArgs(bodyLocArgs);
+    /**
+     * Everything of a multicast except its tokens. The configs are immutable, so every chunk (and
+     * every retry) shares the same instances.
+     */
+    private record MulticastTemplate(MessageTemplates.PlatformConfigs configs, Map<String, String> data) {
+
+        MulticastMessage forTokens(List<String> tokens) {
+            MulticastMessage.Builder messageBuilder = configs.applyTo(MulticastMessage.builder())
+                    .addAllTokens(tokens);
+            if (data != null && !data.isEmpty()) {
+                messageBuilder.putAllData(data);
             }
-        } else if (!isBlank(body)) {
-            notificationBuilder.setBody(body);
+            return messageBuilder.build();
         }
+    }
 
-        return AndroidConfig.builder()
-                .setPriority(AndroidConfig.Priority.HIGH)
-                .setNotification(notificationBuilder
-                        .setChannelId(ANDROID_CHANNEL_ID)
-                        .build())
-                .build();
+    private MulticastTemplate multicastTemplate(
+            String title,
+            String body,
+            Map<String, String> data,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+        return new MulticastTemplate(
+                templates.configsFor(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs), data);
     }
 
-    private ApnsConfig buildApnsConfig(
+    /**
+     * Sends to a topic once the {@link FcmRateLimiter} grants the message; no thread waits for the
+     * limiter or for FCM. Fails the stage when the topic is blank, the limiter is stopped or FCM
+     * rejects the message.
+     */
+    public CompletionStage<TopicNotificationResponse> sendTopicNotificationAsync(
+            String topic,
             String title,
             String body,
+            Map<String, String> data,
             String titleLocKey,
             List<String> titleLocArgs,
             String bodyLocKey,
             List<String> bodyLocArgs
     ) {
-        ApsAlert.Builder alertBuilder = ApsAlert.builder();
-
-        // Only set static title/body if no localization keys are provided
-        // When localization keys are set, they take precedence
-        if (!isBlank(titleLocKey)) {
-            alertBuilder.setTitleLocalizationKey(titleLocKey);
-            if (titleLocArgs != null && !titleLocArgs.isEmpty()) {
-                alertBuilder.addAllTitleLocArgs(titleLocArgs);
+        if (isBlank(topic)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Topic cannot be empty"));
+        }
+
+        // Data-only messages get no notification configs to avoid duplicate notifications
+        Message.Builder messageBuilder = templates
+                .configsFor(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs)
+                .applyTo(Message.builder())
+                .setTopic(topic);
+
+        if (data != null && !data.isEmpty()) {
+            messageBuilder.putAllData(data);
+        }
+
+        Message message = messageBuilder.build();
+        return rateLimiter.acquire(FcmRateLimiter.Caller.REST, 1).thenCompose(ignored -> {
+            long start = System.nanoTime();
+            return toCompletableFuture(messaging.sendAsync(message))
+                    .whenComplete((messageId, error) -> metrics.sendLatency(SEND_TOPIC, error == null, start));
+        }).handle((messageId, error) -> {
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                LOGGER.severe("Failed to send topic notification: " + cause.getMessage());
+                throw new CompletionException(cause);
             }
-        } else if (!isBlank(title)) {
-            alertBuilder.setTitle(title);
+            LOGGER.info(String.format("Successfully sent topic notification to %s", topic));
+            return new TopicNotificationResponse(topic, messageId);
+        });
+    }
+
+    /**
+     * Sends a data-only message to the union of up to five topics (a single topic, or a
+     * "'a' in topics || 'b' in topics" condition so that devices in several of them get it once).
+     */
+    public CompletionStage<String> sendToTopicsAsync(
+            FcmRateLimiter.Caller caller,
+            List<String> topics,
+            Map<String, String> data
+    ) {
+        if (topics == null || topics.isEmpty() || topics.size() > CONDITION_TOPIC_LIMIT) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Between 1 and " + CONDITION_TOPIC_LIMIT + " topics are required"));
+        }
+
+        Message.Builder messageBuilder = Message.builder();
+        if (topics.size() == 1) {
+            messageBuilder.setTopic(topics.get(0));
+        } else {
+            messageBuilder.setCondition(topics.stream()
+                    .map(topic -> "'" + topic + "' in topics")
+                    .collect(Collectors.joining(" || ")));
+        }
+        MessageTemplates.DATA_ONLY.applyTo(messageBuilder);
+        if (data != null && !data.isEmpty()) {
+            messageBuilder.putAllData(data);
         }
 
-        if (!isBlank(bodyLocKey)) {
-            alertBuilder.setLocalizationKey(bodyLocKey);
-            if (bodyLocArgs != null && !bodyLocArgs.isEmpty()) {
-                alertBuilder.addAllLocalizationArgs(bodyLocArgs);
+        Message message = messageBuilder.build();
+        return rateLimiter.acquire(caller, 1).thenCompose(ignored -> {
+            long start = System.nanoTime();
+            return toCompletableFuture(messaging.sendAsync(message))
+                    .whenComplete((messageId, error) -> {
+                        metrics.sendLatency(SEND_TOPIC, error == null, start);
+                        if (error != null) {
+                            metrics.sendFailures(unwrap(error), 1);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Subscribes tokens to a topic in calls of at most 1000 tokens
+     * @return number of tokens subscribed
+     */
+    public int subscribeToTopic(List<String> tokens, String topic) {
+        return manageTopic(tokens, topic, true);
+    }
+
+    /**
+     * Unsubscribes tokens from a topic in calls of at most 1000 tokens
+     * @return number of tokens unsubscribed
+     */
+    public int unsubscribeFromTopic(List<String> tokens, String topic) {
+        return manageTopic(tokens, topic, false);
+    }
+
+    private int manageTopic(List<String> tokens, String topic, boolean subscribe) {
+        if (tokens == null || tokens.isEmpty()) {
+            return 0;
+        }
+        int succeeded = 0;
+        for (int from = 0; from < tokens.size(); from += TOPIC_MANAGEMENT_LIMIT) {
+            List<String> batch = tokens.subList(from, Math.min(from + TOPIC_MANAGEMENT_LIMIT, tokens.size()));
+            try {
+                TopicManagementResponse response = subscribe
+                        ? messaging.subscribeToTopic(batch, topic)
+                        : messaging.unsubscribeFromTopic(batch, topic);
+                succeeded += response.getSuccessCount();
+                if (response.getFailureCount() > 0) {
+                    LOGGER.warning(String.format("%s %s: %d of %d tokens failed (first error: %s)",
+                            subscribe ? "Subscribe to" : "Unsubscribe from", topic,
+                            response.getFailureCount(), batch.size(), response.getErrors().get(0).getReason()));
+                }
+            } catch (FirebaseMessagingException e) {
+                LOGGER.severe(String.format("Failed to %s %d tokens %s topic %s: %s",
+                        subscribe ? "subscribe" : "unsubscribe", batch.size(),
+                        subscribe ? "to" : "from", topic, e.getMessage()));
             }
-        } else if (!isBlank(body)) {
-            alertBuilder.setBody(body);
         }
+        return succeeded;
+    }
 
-        return ApnsConfig.builder()
-                .setAps(Aps.builder()
-                        .setAlert(alertBuilder.build())
-                        .build())
-                .build();
+    /**
+     * MessagingErrorCode name of a send failure, falling back to the generic Firebase ErrorCode
+     */
+    static String errorCode(Throwable error) {
+        if (error instanceof FirebaseMessagingException e && e.getMessagingErrorCode() != null) {
+            return e.getMessagingErrorCode().name();
+        }
+        if (error instanceof FirebaseException e && e.getErrorCode() != null) {
+            return e.getErrorCode().name();
+        }
+        return "UNKNOWN";
     }
 
     private boolean isBlank(String value) {
         return value == null || value.isBlank();
     }
 
-    private NotificationResponse buildNotificationResponse(List<String> tokens, BatchResponse batchResponse) {
-        List<NotificationResponse.NotificationResult> results = new ArrayList<>();
+    private List<NotificationResponse.NotificationResult> buildNotificationResults(
+            List<String> tokens,
+            BatchResponse batchResponse
+    ) {
+        List<NotificationResponse.NotificationResult> results = new ArrayList<>(tokens.size());
         List<SendResponse> responses = batchResponse.getResponses();
 
         for (int i = 0; i < responses.size(); i++) {
@@ -283,15 +665,11 @@ public class FirebaseService {
                         token,
                         false,
                         null,
-                        errorMessage
+                        errorMessage,
+                        errorCode(response.getException())
                 ));
             }
         }
-
-        return new NotificationResponse(
-                batchResponse.getSuccessCount(),
-                batchResponse.getFailureCount(),
-                results
-        );
+        return results;
     }
 }
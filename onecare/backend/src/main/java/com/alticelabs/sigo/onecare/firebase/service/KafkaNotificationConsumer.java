@@ -3,13 +3,15 @@ package com.alticelabs.sigo.onecare.firebase.service;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.smallrye.common.annotation.RunOnVirtualThread;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,398 +27,454 @@ public class KafkaNotificationConsumer {
     TokenStorageService tokenStorageService;
 
     @Inject
-    FirebaseService firebaseService;
+    UserTeamService userTeamService;
 
     @Inject
-    UserTeamService userTeamService;
+    NotificationMetrics metrics;
 
-    @Incoming("ttk-in")
-    @RunOnVirtualThread
-    public void onMessage(String payload) {
-        try {
-            LOGGER.info("Received Kafka payload: " + payload);
-            JsonNode root = objectMapper.readTree(payload);
-            String schema = optionalText(root, "header", "schema");
-            if (!"TTK".equalsIgnoreCase(schema)) {
-                return; // ignore other schemas
-            }
+    @Inject
+    TeamTopicService teamTopics;
 
-            String eventType = optionalText(root, "header", "eventType");
-            JsonNode dataNode = root.path("data").path("value");
-            if (dataNode.isMissingNode() || !dataNode.isObject()) {
-                LOGGER.warning("No data.value present, skipping message");
-                return;
-            }
+    @Inject
+    NotificationOutbox outbox;
 
-            // Only process tickets with origin "Onecare"
-            String origin = dataNode.path("origin").asText("");
-            if (!"Onecare".equalsIgnoreCase(origin)) {
-                LOGGER.info("Skipping ticket with origin: " + origin + " (only Onecare tickets are processed)");
-                return;
-            }
+    @Inject
+    DeadLetterService deadLetters;
 
-            // Only process messages that contain a status, note, or attachment change
-            JsonNode changesArray = resolveChanges(root);
-            if (!hasRelevantChange(changesArray, dataNode)) {
-                LOGGER.info("Skipping message without relevant change");
-                return;
-            }
+    @Inject
+    TicketDedupCache dedup;
 
-            String ticketId = dataNode.path("id").asText("unknown");
-            String ticketName = dataNode.path("name").asText("");
-            String createdBy = dataNode.path("createdBy").asText("");
-            String actionUsername = optionalText(root, "data", "userInfo", "username");
+    @Inject
+    TicketCoalescer coalescer;
 
-            // Get all tokens except the action performer
-            List<String> tokens = tokenStorageService.getAllTokensExceptUser(actionUsername);
-            if (tokens.isEmpty()) {
-                LOGGER.info("No tokens for ticket " + ticketId + ", skipping notification.");
-                return;
-            }
+    @Inject
+    DigestService digests;
 
-            JsonNode changesNode = resolveChanges(root);
-            String titleKey = resolveTitleKey(eventType);
-            String bodyKey = resolveBodyKey(changesNode, dataNode);
-
-            // Build data payload with localization keys for client-side translation
-            Map<String, String> data = new HashMap<>();
-            data.put("ticketId", ticketId);
-            data.put("createdBy", createdBy);
-            data.put("actionUsername", actionUsername != null ? actionUsername : "");
-            data.put("titleKey", titleKey);
-            data.put("bodyKey", bodyKey);
-            String changesString;
-            try {
-                if (changesNode != null && !changesNode.isMissingNode() && !changesNode.isNull()) {
-                    changesString = objectMapper.writeValueAsString(changesNode);
-                } else {
-                    changesString = "[]";
-                }
-            } catch (Exception e) {
-                changesString = "[]";
-                LOGGER.warning("Failed to serialize changes node: " + e.getMessage());
-            }
-            data.put("changes", changesString);
-
-            // Send data-only notification - client will handle translation
-            LOGGER.info(String.format(
-                    "Sending notification for ticket %s to %d tokens (titleKey=%s, bodyKey=%s)",
-                    ticketId, tokens.size(), titleKey, bodyKey));
-
-            var response = firebaseService.sendMulticastNotification(
-                    tokens,
-                    null, // No title - client will translate
-                    null, // No body - client will translate
-                    data,
-                    null,
-                    null,
-                    null,
-                    null
-            );
-
-            response.getResults().stream()
-                .filter(r -> !r.isSuccess())
-                .forEach(r -> {
-                    LOGGER.warning("Notification failed for token " + r.getToken() + " error=" + r.getError());
-                    tokenStorageService.unregisterToken(r.getToken());
-                });
-
-            LOGGER.info(String.format(
-                    "Sent notification for ticket %s to %d tokens (success=%d, failure=%d)",
-                    ticketId, tokens.size(), response.getSuccessCount(), response.getFailureCount()));
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to process Kafka message", e);
-        }
-    }
+    // data.value fields holding the ticket's team(s); each may be a string or an array of strings
+    @ConfigProperty(name = "ttk.recipients.team-fields", defaultValue = "createdByTeam")
+    List<String> teamFields;
 
-    /**
-     * Get all tokens except for the user who performed the action.
-     * First iteration: send to all users except the action performer.
-     */
-    private List<String> collectTokens(JsonNode root) {
-        // Get the user who performed the action from data.userInfo.username
-        String actionUsername = optionalText(root, "data", "userInfo", "username");
+    // Send to every registered token when a ticket names no team known to user_teams
+    @ConfigProperty(name = "ttk.recipients.broadcast-fallback", defaultValue = "true")
+    boolean broadcastFallback;
 
-        // Get all tokens except the action performer
-        List<String> tokens = tokenStorageService.getAllTokensExceptUser(actionUsername);
+    // Raw payloads are logged at FINE; at INFO only this fraction of them, truncated to payloadMaxChars
+    @ConfigProperty(name = "ttk.log.payload-sample-rate", defaultValue = "0.001")
+    double payloadSampleRate;
 
-        LOGGER.info(String.format(
-                "Notification targeting: %d tokens (excluding actionUsername=%s)",
-                tokens.size(), actionUsername));
+    @ConfigProperty(name = "ttk.log.payload-max-chars", defaultValue = "512")
+    int payloadMaxChars;
 
-        return tokens;
+    private TtkEventPrefilter prefilter;
+    private TtkChangeClassifier classifier;
+
+    @PostConstruct
+    void init() {
+        prefilter = new TtkEventPrefilter(objectMapper.getFactory());
+        classifier = new TtkChangeClassifier(objectMapper);
     }
 
-    private String buildBody(JsonNode changes, JsonNode dataNode) {
-        if (changes.isArray()) {
-            for (JsonNode change : changes) {
-                String type = change.path("type").asText("");
-                if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
-                    return "New ticket created";
-                }
-                if ("FieldChange".equalsIgnoreCase(type)) {
-                    String field = change.path("fieldName").asText("");
-                    String oldVal = change.path("oldValue").asText("");
-                    String newVal = change.path("newValue").asText("");
-
-                    if ("status".equalsIgnoreCase(field)) {
-                        if (!oldVal.isEmpty() && !newVal.isEmpty()) {
-                            return String.format("Status: %s -> %s", oldVal, newVal);
-                        }
-                        if (!newVal.isEmpty()) {
-                            return "Status: " + newVal;
-                        }
-                    }
-                    if ("impact".equalsIgnoreCase(field)) {
-                        if (!oldVal.isEmpty() && !newVal.isEmpty()) {
-                            return String.format("Impact: %s -> %s", oldVal, newVal);
-                        }
-                        if (!newVal.isEmpty()) {
-                            return "Impact: " + newVal;
-                        }
-                    }
-                    if ("severity".equalsIgnoreCase(field)) {
-                        if (!oldVal.isEmpty() && !newVal.isEmpty()) {
-                            return String.format("Severity: %s -> %s", oldVal, newVal);
-                        }
-                        if (!newVal.isEmpty()) {
-                            return "Severity: " + newVal;
-                        }
-                    }
-                } else if ("Note".equalsIgnoreCase(type)) {
-                    return "Note added";
-                } else if ("Attachment".equalsIgnoreCase(type)) {
-                    String action = change.path("action").asText("");
-                    if ("ADD".equalsIgnoreCase(action)) {
-                        return "Attachment added";
-                    }
-                    if ("REMOVE".equalsIgnoreCase(action)) {
-                        return "Attachment removed";
+    /**
+     * Handles one Kafka poll at a time. Recipients are resolved from a single token snapshot for
+     * the whole batch and the resulting notifications are stored in the {@link NotificationOutbox}
+     * in one transaction; the batch offsets are acknowledged once they are stored, without waiting
+     * for FCM. With coalescing on (opt-in), changes are handed to the {@link TicketCoalescer} instead
+     * and queued when their ticket's window ends; those records are acked while still in memory.
+     */
+    @Incoming("ttk-in")
+    @RunOnVirtualThread
+    public void onBatch(List<String> payloads) {
+        List<TicketNotification> notifications = new ArrayList<>(payloads.size());
+        List<String> accepted = new ArrayList<>(payloads.size());
+        Set<String> batchKeys = new HashSet<>();
+        for (String payload : payloads) {
+            long start = System.nanoTime();
+            try {
+                TicketNotification notification = parseNotification(payload);
+                if (notification != null && isDuplicate(notification, batchKeys)) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Skipping duplicate change of ticket " + notification.ticketId());
                     }
-                    return "Attachment updated";
+                    metrics.skipped(NotificationMetrics.SKIP_DUPLICATE);
+                } else if (notification != null) {
+                    notifications.add(notification);
+                    accepted.add(payload);
                 }
+            } catch (Exception e) {
+                metrics.skipped(NotificationMetrics.SKIP_PARSE_ERROR);
+                LOGGER.log(Level.SEVERE, "Failed to process Kafka message", e);
+                deadLetters.deadLetter(payload, DeadLetterService.REASON_PARSE_ERROR, e);
             }
+            metrics.recordProcessing(start);
         }
 
-        if (isNoteUpdate(dataNode)) {
-            return "Note added";
-        }
-        if (isAttachmentUpdate(dataNode)) {
-            return "Attachment added";
+        if (notifications.isEmpty()) {
+            return;
         }
 
-        return "Ticket updated";
+        if (coalescer.isEnabled()) {
+            // Delivered when the ticket's coalescing window ends
+            for (int i = 0; i < notifications.size(); i++) {
+                if (!coalescer.add(notifications.get(i), accepted.get(i))) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Skipping duplicate change of ticket " + notifications.get(i).ticketId());
+                    }
+                    metrics.skipped(NotificationMetrics.SKIP_DUPLICATE);
+                }
+            }
+            return;
+        }
+        deliver(notifications, accepted, batchKeys);
     }
 
-    private String summarizeEvent(String eventType) {
-        if (eventType == null || eventType.isEmpty()) return "updated";
-        return eventType.toLowerCase(Locale.ROOT);
+    /**
+     * Resolves recipients and queues the notifications in the outbox. payloads are the source
+     * records, dead-lettered when nothing could be queued.
+     */
+    void deliver(List<TicketNotification> notifications, List<String> payloads, Collection<String> dedupKeys) {
+        try {
+            dispatch(notifications);
+            dedup.remember(dedupKeys);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to dispatch Kafka batch", e);
+            // Nothing of the batch reached the outbox; the records can be replayed once the cause is fixed
+            for (String payload : payloads) {
+                deadLetters.deadLetter(payload, DeadLetterService.REASON_DISPATCH_ERROR, e);
+            }
+        }
     }
 
-    private String resolveTitleKey(String eventType) {
-        if (eventType == null) {
-            return "ticket_updated_title";
+    /**
+     * Parses and queues records right away (no coalescing) and, unlike {@link #onBatch}, neither
+     * dead-letters nor swallows failures: the dead-letter replay needs to know whether a record
+     * made it into the outbox. Records that are filtered out or duplicates succeed with nothing queued.
+     * @throws Exception when a record cannot be parsed or the notifications cannot be queued
+     */
+    void process(List<String> payloads) throws Exception {
+        List<TicketNotification> notifications = new ArrayList<>(payloads.size());
+        Set<String> batchKeys = new HashSet<>();
+        for (String payload : payloads) {
+            TicketNotification notification = parseNotification(payload);
+            if (notification != null && !isDuplicate(notification, batchKeys)) {
+                notifications.add(notification);
+            }
         }
-        String normalized = eventType.toLowerCase(Locale.ROOT);
-        if (normalized.contains("create")) {
-            return "ticket_created_title";
+        if (!notifications.isEmpty()) {
+            dispatch(notifications);
+            dedup.remember(batchKeys);
         }
-        if (normalized.contains("resolve")) {
-            return "ticket_resolved_title";
+    }
+
+    /**
+     * Redeliveries and repeated TTK emissions of a change already queued, in this batch or before
+     */
+    private boolean isDuplicate(TicketNotification notification, Set<String> batchKeys) {
+        String key = notification.dedupKey();
+        if (key == null) {
+            return false;
         }
-        if (normalized.contains("close")) {
-            return "ticket_closed_title";
+        return dedup.isDuplicate(key) || !batchKeys.add(key);
+    }
+
+    TicketNotification parseNotification(String payload) throws Exception {
+        logPayload(payload);
+
+        // Cheap streaming pass first: most of the topic is dropped on schema/origin alone
+        TtkEventPrefilter.Header header = prefilter.scan(payload);
+        if (!header.isTtk()) {
+            metrics.skipped(NotificationMetrics.SKIP_SCHEMA);
+            return null; // ignore other schemas
+        }
+
+        // Only process tickets with origin "Onecare"
+        if (!header.isOnecare()) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Skipping ticket with origin: " + header.origin() + " (only Onecare tickets are processed)");
+            }
+            metrics.skipped(NotificationMetrics.SKIP_ORIGIN);
+            return null;
         }
-        if (normalized.contains("cancel")) {
-            return "ticket_cancelled_title";
+
+        JsonNode root = objectMapper.readTree(payload);
+        String eventType = header.eventType();
+        JsonNode dataNode = root.path("data").path("value");
+        if (dataNode.isMissingNode() || !dataNode.isObject()) {
+            LOGGER.warning("No data.value present, skipping message");
+            metrics.skipped(NotificationMetrics.SKIP_NO_DATA);
+            return null;
         }
-        if (normalized.contains("reopen")) {
-            return "ticket_reopened_title";
+
+        // Only process messages that contain a status, note, or attachment change
+        TtkChangeClassifier.TtkChangeSummary summary = classifier.classify(root, eventType);
+        if (!summary.relevant()) {
+            LOGGER.fine("Skipping message without relevant change");
+            metrics.skipped(NotificationMetrics.SKIP_NOT_RELEVANT);
+            return null;
         }
-        return "ticket_updated_title";
+
+        String ticketId = dataNode.path("id").asText("unknown");
+        String createdBy = dataNode.path("createdBy").asText("");
+        String actionUsername = optionalText(root, "data", "userInfo", "username");
+
+        // Build data payload with localization keys for client-side translation
+        Map<String, String> data = new HashMap<>();
+        data.put("ticketId", ticketId);
+        data.put("createdBy", createdBy);
+        data.put("actionUsername", actionUsername != null ? actionUsername : "");
+        data.put("titleKey", summary.titleKey());
+        data.put("bodyKey", summary.bodyKey());
+        data.put("changes", summary.changes());
+
+        String dedupKey = TicketDedupCache.key(ticketId, dataNode.path("lastUpdate").asText(""),
+                summary.titleKey(), summary.bodyKey(), summary.changes());
+        return new TicketNotification(ticketId, actionUsername, summary.titleKey(), summary.bodyKey(),
+                resolveTeams(dataNode), data, dedupKey);
     }
 
-    private String resolveBodyKey(JsonNode changesNode, JsonNode dataNode) {
-        if (changesNode != null && changesNode.isArray() && !changesNode.isEmpty()) {
-            for (JsonNode change : changesNode) {
-                String type = change.path("type").asText("");
-                if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
-                    return "body_ticket_created";
+    private void dispatch(List<TicketNotification> notifications) throws SQLException {
+        // Audiences are shared between events of the batch with the same teams and actor.
+        // Team tickets go out as one team topic message when the topics can represent the audience.
+        long resolveStart = System.nanoTime();
+        AudienceResolver resolver = new AudienceResolver();
+        List<List<String>> topicsByNotification = new ArrayList<>(notifications.size());
+        List<List<String>> audiences = new ArrayList<>(notifications.size());
+        for (TicketNotification notification : notifications) {
+            List<String> topics = resolver.topics(notification);
+            topicsByNotification.add(topics);
+            audiences.add(topics != null ? List.of() : resolver.resolve(notification));
+        }
+        metrics.tokenResolution(resolveStart);
+
+        List<NotificationOutbox.Entry> entries = new ArrayList<>(notifications.size());
+        List<DigestService.DigestEvent> digestEvents = new ArrayList<>();
+        for (int n = 0; n < notifications.size(); n++) {
+            TicketNotification notification = notifications.get(n);
+            List<String> topics = topicsByNotification.get(n);
+            if (topics != null) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(String.format("Queuing notification for ticket %s to topics %s (titleKey=%s, bodyKey=%s)",
+                            notification.ticketId(), topics, notification.titleKey(), notification.bodyKey()));
                 }
-                if ("FieldChange".equalsIgnoreCase(type)) {
-                    String fieldName = change.path("fieldName").asText("");
-                    if ("status".equalsIgnoreCase(fieldName)) {
-                        return "body_status_changed";
-                    }
-                    if ("impact".equalsIgnoreCase(fieldName)) {
-                        return "body_impact_changed";
-                    }
-                    if ("severity".equalsIgnoreCase(fieldName)) {
-                        return "body_severity_changed";
-                    }
-                } else if ("Note".equalsIgnoreCase(type)) {
-                    return "body_note_added";
-                } else if ("Attachment".equalsIgnoreCase(type)) {
-                    String action = change.path("action").asText("");
-                    if ("ADD".equalsIgnoreCase(action)) {
-                        return "body_attachment_added";
-                    }
-                    if ("REMOVE".equalsIgnoreCase(action)) {
-                        return "body_attachment_removed";
-                    }
-                    return "body_attachment_added";
+                entries.add(NotificationOutbox.Entry.forTopics(notification.ticketId(), topics, notification.data()));
+                // A creator outside the teams is not reached by the topic message
+                List<String> creatorTokens = digests.divert(notification,
+                        resolver.creatorOutsideTeams(notification), digestEvents);
+                if (!creatorTokens.isEmpty()) {
+                    entries.add(NotificationOutbox.Entry.forTokens(notification.ticketId(), creatorTokens, notification.data()));
                 }
+                continue;
             }
-        }
 
-        if (isNoteUpdate(dataNode)) {
-            return "body_note_added";
-        }
-        if (isAttachmentUpdate(dataNode)) {
-            return "body_attachment_added";
+            // Users in digest mode get this event in their next summary instead
+            List<String> tokens = digests.divert(notification, audiences.get(n), digestEvents);
+            metrics.audienceSize(tokens.size());
+            if (tokens.isEmpty()) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("No tokens for ticket " + notification.ticketId() + ", skipping notification.");
+                }
+                metrics.skipped(NotificationMetrics.SKIP_NO_AUDIENCE);
+                continue;
+            }
+
+            // Data-only notification - client will handle translation
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(String.format(
+                        "Queuing notification for ticket %s to %d tokens (titleKey=%s, bodyKey=%s)",
+                        notification.ticketId(), tokens.size(), notification.titleKey(), notification.bodyKey()));
+            }
+            entries.add(NotificationOutbox.Entry.forTokens(notification.ticketId(), tokens, notification.data()));
         }
 
-        return "ticket_updated";
+        // Delivery happens on the outbox workers; the batch is acked once its entries are stored
+        digests.buffer(digestEvents);
+        outbox.enqueue(entries);
+        // One line per batch at INFO; the per-ticket lines above are FINE
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info(String.format("Queued %d notifications for %d ticket changes (%d buffered for digests)",
+                    entries.size(), notifications.size(), digestEvents.size()));
+        }
     }
 
-    private JsonNode resolveChanges(JsonNode root) {
-        JsonNode changes = root.path("changes");
-        if (changes != null && changes.isArray() && changes.size() > 0) {
-            return changes;
-        }
-        JsonNode dataChanges = root.path("data").path("changes");
-        if (dataChanges != null && dataChanges.isArray()) {
-            return dataChanges;
+    private void logPayload(String payload) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Received Kafka payload: " + truncate(payload));
+        } else if (payloadSampleRate > 0 && LOGGER.isLoggable(Level.INFO)
+                && ThreadLocalRandom.current().nextDouble() < payloadSampleRate) {
+            LOGGER.info("Sampled Kafka payload: " + truncate(payload));
         }
-        return objectMapper.createArrayNode();
     }
 
-    private String optionalText(JsonNode root, String... path) {
-        JsonNode current = root;
-        for (String p : path) {
-            current = current.path(p);
+    private String truncate(String payload) {
+        if (payloadMaxChars <= 0 || payload.length() <= payloadMaxChars) {
+            return payload;
         }
-        return current.isMissingNode() ? null : current.asText();
+        return payload.substring(0, payloadMaxChars) + "... (" + payload.length() + " chars)";
     }
 
-    private boolean hasRelevantChange(JsonNode changesNode, JsonNode dataNode) {
-        if (changesNode != null && changesNode.isArray() && !changesNode.isEmpty()) {
-            for (JsonNode change : changesNode) {
-                String type = change.path("type").asText("");
-                if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
-                    return true;
+    /**
+     * Per-batch recipient resolution (FR-3.1: members of the ticket's teams and its creator, never
+     * the actor). Team-scoped tickets go through one joined user_teams/tokens query per distinct
+     * (teams, actor); the broadcast fallback reads a single token snapshot, taken lazily the first
+     * time the batch needs it. Lookup errors propagate so the batch is dead-lettered: an empty
+     * result from a failed query must not be taken for an unknown team and broadcast.
+     */
+    private final class AudienceResolver {
+
+        private final Map<AudienceKey, List<String>> audienceByKey = new HashMap<>();
+        private final Map<AudienceKey, Optional<List<String>>> topicsByKey = new HashMap<>();
+        private final Map<List<String>, Set<String>> membersByTeams = new HashMap<>();
+        private Map<String, List<String>> tokensByUser;
+
+        /**
+         * Team topics to send to, or null when the ticket has to go through token resolution: topics
+         * disabled, no team or more than a condition can hold, no known members, or an actor or a
+         * digest-mode user who is a member of one of the teams (a topic message cannot exclude them).
+         */
+        List<String> topics(TicketNotification notification) throws SQLException {
+            List<String> teams = notification.teams();
+            if (!teamTopics.isEnabled() || teams.isEmpty() || teams.size() > FirebaseService.CONDITION_TOPIC_LIMIT) {
+                return null;
+            }
+            String actor = actor(notification);
+            AudienceKey key = new AudienceKey(teams, actor);
+            Optional<List<String>> topics = topicsByKey.get(key);
+            if (topics == null) {
+                Set<String> members = members(teams);
+                if (members.isEmpty() || members.contains(actor)) {
+                    topics = Optional.empty();
+                } else if (tokenStorageService.hasDigestUsers()
+                        && members.stream().anyMatch(member -> tokenStorageService.getDigestInterval(member) != null)) {
+                    topics = Optional.empty();
+                } else {
+                    topics = Optional.of(teams.stream().map(teamTopics::topicFor).toList());
                 }
-                if ("FieldChange".equalsIgnoreCase(type)) {
-                    String fieldName = change.path("fieldName").asText("");
-                    if ("status".equalsIgnoreCase(fieldName) ||
-                            "impact".equalsIgnoreCase(fieldName) ||
-                            "severity".equalsIgnoreCase(fieldName)) {
-                        return true;
-                    }
-                } else if ("Note".equalsIgnoreCase(type) || "Attachment".equalsIgnoreCase(type)) {
-                    return true;
+                topicsByKey.put(key, topics);
+            }
+            return topics.orElse(null);
+        }
+
+        List<String> resolve(TicketNotification notification) throws SQLException {
+            String actor = actor(notification);
+            List<String> teams = notification.teams();
+            if (teams.isEmpty()) {
+                return broadcastFallback ? broadcast(actor) : withCreator(List.of(), notification);
+            }
+            AudienceKey key = new AudienceKey(teams, actor);
+            List<String> tokens = audienceByKey.get(key);
+            if (tokens == null) {
+                tokens = userTeamService.getTokensForTeams(teams, actor);
+                if (tokens.isEmpty() && broadcastFallback && members(teams).isEmpty()) {
+                    LOGGER.fine("No members known for teams " + teams + ", falling back to broadcast");
+                    tokens = broadcast(actor);
                 }
+                audienceByKey.put(key, tokens);
             }
+            return withCreator(tokens, notification);
         }
 
-        return isNoteUpdate(dataNode) || isAttachmentUpdate(dataNode);
-    }
+        /**
+         * Tokens of the ticket's creator when they are neither the actor nor a member of its teams
+         */
+        List<String> creatorOutsideTeams(TicketNotification notification) throws SQLException {
+            String creator = creator(notification);
+            if (creator.isEmpty() || members(notification.teams()).contains(creator)) {
+                return List.of();
+            }
+            return tokenStorageService.getTokensForUser(creator);
+        }
 
-    private String resolveBodyLocKey(JsonNode changesNode, String status, JsonNode dataNode) {
-        if (changesNode != null && changesNode.isArray() && !changesNode.isEmpty()) {
-            for (JsonNode change : changesNode) {
-                String type = change.path("type").asText("");
-                if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
-                    return "notif_body_ticket_created";
-                }
-                if ("FieldChange".equalsIgnoreCase(type)) {
-                    String fieldName = change.path("fieldName").asText("");
-                    if ("status".equalsIgnoreCase(fieldName)) {
-                        return status.isEmpty() ? "notif_ticket_generic_body" : "notif_ticket_status_body";
-                    }
-                    if ("impact".equalsIgnoreCase(fieldName)) {
-                        return "notif_body_impact_changed";
-                    }
-                    if ("severity".equalsIgnoreCase(fieldName)) {
-                        return "notif_body_severity_changed";
-                    }
-                } else if ("Note".equalsIgnoreCase(type)) {
-                    return "notif_body_note_added";
-                } else if ("Attachment".equalsIgnoreCase(type)) {
-                    String action = change.path("action").asText("");
-                    if ("ADD".equalsIgnoreCase(action)) {
-                        return "notif_body_attachment_added";
-                    }
-                    if ("REMOVE".equalsIgnoreCase(action)) {
-                        return "notif_body_attachment_removed";
-                    }
-                    return "notif_body_attachment_updated";
-                }
+        private List<String> withCreator(List<String> tokens, TicketNotification notification) {
+            String creator = creator(notification);
+            List<String> creatorTokens = creator.isEmpty() ? List.of() : tokenStorageService.getTokensForUser(creator);
+            if (creatorTokens.isEmpty()) {
+                return tokens;
             }
+            Set<String> audience = new LinkedHashSet<>(tokens);
+            audience.addAll(creatorTokens);
+            return audience.size() == tokens.size() ? tokens : new ArrayList<>(audience);
         }
 
-        if (isNoteUpdate(dataNode)) {
-            return "notif_body_note_added";
+        private Set<String> members(List<String> teams) throws SQLException {
+            Set<String> members = membersByTeams.get(teams);
+            if (members == null) {
+                members = userTeamService.getUsersInTeams(teams);
+                membersByTeams.put(teams, members);
+            }
+            return members;
         }
-        if (isAttachmentUpdate(dataNode)) {
-            return "notif_body_attachment_added";
+
+        private List<String> broadcast(String actor) {
+            if (tokensByUser == null) {
+                tokensByUser = tokenStorageService.getTokensByUserSnapshot();
+            }
+            return audienceByKey.computeIfAbsent(new AudienceKey(List.of(), actor),
+                    key -> tokensExcept(tokensByUser, actor));
         }
+    }
 
-        return status.isEmpty() ? "notif_ticket_generic_body" : "notif_ticket_status_body";
+    private record AudienceKey(List<String> teams, String actor) {
     }
 
-    private boolean isNoteUpdate(JsonNode dataNode) {
-        return isRecentUpdate(dataNode, "notes", "creationDate");
+    private static String actor(TicketNotification notification) {
+        return notification.actionUsername() != null ? notification.actionUsername() : "";
     }
 
-    private boolean isAttachmentUpdate(JsonNode dataNode) {
-        return isRecentUpdate(dataNode, "attachments", "creationDate");
+    /**
+     * The ticket's creator, or "" when unknown or when they performed the change themselves
+     */
+    private static String creator(TicketNotification notification) {
+        String creator = notification.data().getOrDefault("createdBy", "");
+        return creator.equals(actor(notification)) ? "" : creator;
     }
 
-    private boolean isRecentUpdate(JsonNode dataNode, String arrayField, String dateField) {
-        if (dataNode == null || dataNode.isMissingNode()) {
-            return false;
-        }
-        String lastUpdate = dataNode.path("lastUpdate").asText("");
-        Instant lastUpdateInstant = parseInstant(lastUpdate);
-        if (lastUpdateInstant == null) {
-            return false;
+    private List<String> tokensExcept(Map<String, List<String>> tokensByUser, String excludeUserId) {
+        List<String> tokens = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : tokensByUser.entrySet()) {
+            if (excludeUserId.isEmpty() || !excludeUserId.equals(entry.getKey())) {
+                tokens.addAll(entry.getValue());
+            }
         }
+        return tokens;
+    }
 
-        JsonNode items = dataNode.path(arrayField);
-        if (!items.isArray() || items.isEmpty()) {
-            return false;
-        }
+    record TicketNotification(
+            String ticketId,
+            String actionUsername,
+            String titleKey,
+            String bodyKey,
+            List<String> teams,
+            Map<String, String> data,
+            String dedupKey
+    ) {
+    }
 
-        Instant latest = null;
-        for (JsonNode item : items) {
-            String createdAt = item.path(dateField).asText("");
-            Instant createdInstant = parseInstant(createdAt);
-            if (createdInstant == null) {
-                continue;
-            }
-            if (latest == null || createdInstant.isAfter(latest)) {
-                latest = createdInstant;
+    private List<String> resolveTeams(JsonNode dataNode) {
+        List<String> teams = new ArrayList<>(2);
+        for (String field : teamFields) {
+            JsonNode value = dataNode.path(field);
+            if (value.isArray()) {
+                value.forEach(team -> addTeam(teams, team));
+            } else {
+                addTeam(teams, value);
             }
         }
+        return teams;
+    }
 
-        if (latest == null) {
-            return false;
+    private void addTeam(List<String> teams, JsonNode team) {
+        if (team.isValueNode() && !team.isNull()) {
+            String teamId = team.asText().trim();
+            if (!teamId.isEmpty() && !teams.contains(teamId)) {
+                teams.add(teamId);
+            }
         }
-
-        long seconds = Math.abs(Duration.between(lastUpdateInstant, latest).getSeconds());
-        return seconds <= 5;
     }
 
-    private Instant parseInstant(String value) {
-        if (value == null || value.isBlank()) {
-            return null;
-        }
-        try {
-            return Instant.parse(value);
-        } catch (Exception e) {
-            return null;
+    private String optionalText(JsonNode root, String... path) {
+        JsonNode current = root;
+        for (String p : path) {
+            current = current.path(p);
         }
+        return current.isMissingNode() ? null : current.asText();
     }
-
 }
@@ -0,0 +1,52 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated listing. Pages are read with "key > last key ORDER BY key
+ * LIMIT n" on a covering index, so every page costs the same however deep it is and no offset is
+ * scanned. The cursor is the last key of the page, base64url-encoded; null on the last page.
+ */
+public record KeysetPage(List<String> items, String nextCursor) {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Builds a page from rows fetched with LIMIT limit + 1; the extra row only tells that there is more
+     */
+    static KeysetPage of(List<String> rows, int limit) {
+        if (rows.size() <= limit) {
+            return new KeysetPage(rows, null);
+        }
+        List<String> items = rows.subList(0, limit);
+        return new KeysetPage(items, encodeCursor(items.get(limit - 1)));
+    }
+
+    static String encodeCursor(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Key to continue after; "" (before every key) for a null or empty cursor
+     */
+    static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return "";
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    static int checkLimit(int limit) {
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,208 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.google.firebase.messaging.AndroidConfig;
+import com.google.firebase.messaging.AndroidNotification;
+import com.google.firebase.messaging.ApnsConfig;
+import com.google.firebase.messaging.Aps;
+import com.google.firebase.messaging.ApsAlert;
+import com.google.firebase.messaging.Message;
+import com.google.firebase.messaging.MulticastMessage;
+import com.google.firebase.messaging.Notification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The platform parts of outgoing messages (Notification, AndroidConfig, ApnsConfig). They are
+ * immutable in the Admin SDK, so one instance can go into any number of messages:
+ * <ul>
+ *   <li>data-only messages (every Kafka event and topic send) share {@link #DATA_ONLY};</li>
+ *   <li>localized messages are cached per (loc keys, loc args), which repeat across sends;</li>
+ *   <li>messages with a static title/body are built per call, free text is rarely sent twice.</li>
+ * </ul>
+ * The localized cache is cleared when it reaches {@link #MAX_CACHED} entries rather than evicting
+ * one by one; rebuilding a config is cheap, the cache only saves doing it on every send.
+ */
+final class MessageTemplates {
+
+    static final String ANDROID_CHANNEL_ID = "sigo_default_channel";
+    static final int MAX_CACHED = 1024;
+
+    /**
+     * Data-only: high priority on Android, content-available for background delivery on iOS, and
+     * no notification configs so the OS does not show anything itself
+     */
+    static final PlatformConfigs DATA_ONLY = new PlatformConfigs(
+            null,
+            AndroidConfig.builder()
+                    .setPriority(AndroidConfig.Priority.HIGH)
+                    .build(),
+            ApnsConfig.builder()
+                    .setAps(Aps.builder()
+                            .setContentAvailable(true)
+                            .build())
+                    .build());
+
+    private final Map<LocalizedKey, PlatformConfigs> localized = new ConcurrentHashMap<>();
+
+    record PlatformConfigs(Notification notification, AndroidConfig androidConfig, ApnsConfig apnsConfig) {
+
+        MulticastMessage.Builder applyTo(MulticastMessage.Builder builder) {
+            builder.setAndroidConfig(androidConfig).setApnsConfig(apnsConfig);
+            if (notification != null) {
+                builder.setNotification(notification);
+            }
+            return builder;
+        }
+
+        Message.Builder applyTo(Message.Builder builder) {
+            builder.setAndroidConfig(androidConfig).setApnsConfig(apnsConfig);
+            if (notification != null) {
+                builder.setNotification(notification);
+            }
+            return builder;
+        }
+    }
+
+    private record LocalizedKey(
+            String title,
+            String body,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+    }
+
+    /**
+     * Platform configs for a message; title and body are only used where no loc key is given
+     */
+    PlatformConfigs configsFor(
+            String title,
+            String body,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+        boolean hasLocKeys = !isBlank(titleLocKey) || !isBlank(bodyLocKey);
+        boolean hasContent = !isBlank(title) || !isBlank(body);
+        if (!hasLocKeys && !hasContent) {
+            return DATA_ONLY;
+        }
+        if (!hasLocKeys) {
+            return new PlatformConfigs(
+                    Notification.builder()
+                            .setTitle(title)
+                            .setBody(body)
+                            .build(),
+                    buildAndroidConfig(title, body, null, null, null, null),
+                    buildApnsConfig(title, body, null, null, null, null));
+        }
+
+        LocalizedKey key = new LocalizedKey(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs);
+        PlatformConfigs configs = localized.get(key);
+        if (configs == null) {
+            configs = new PlatformConfigs(null,
+                    buildAndroidConfig(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs),
+                    buildApnsConfig(title, body, titleLocKey, titleLocArgs, bodyLocKey, bodyLocArgs));
+            if (localized.size() >= MAX_CACHED) {
+                localized.clear();
+            }
+            // Stored under a copy, the caller may reuse its argument lists
+            localized.putIfAbsent(new LocalizedKey(title, body, titleLocKey, copy(titleLocArgs),
+                    bodyLocKey, copy(bodyLocArgs)), configs);
+        }
+        return configs;
+    }
+
+    int cachedCount() {
+        return localized.size();
+    }
+
+    private static AndroidConfig buildAndroidConfig(
+            String title,
+            String body,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+        AndroidNotification.Builder notificationBuilder = AndroidNotification.builder();
+
+        // Only set static title/body if no localization keys are provided
+        // When localization keys are set, they take precedence
+        if (!isBlank(titleLocKey)) {
+            notificationBuilder.setTitleLocalizationKey(titleLocKey);
+            if (titleLocArgs != null && !titleLocArgs.isEmpty()) {
+                notificationBuilder.addAllTitleLocalizationArgs(titleLocArgs);
+            }
+        } else if (!isBlank(title)) {
+            notificationBuilder.setTitle(title);
+        }
+
+        if (!isBlank(bodyLocKey)) {
+            notificationBuilder.setBodyLocalizationKey(bodyLocKey);
+            if (bodyLocArgs != null && !bodyLocArgs.isEmpty()) {
+                notificationBuilder.addAllBodyLocalizationArgs(bodyLocArgs);
+            }
+        } else if (!isBlank(body)) {
+            notificationBuilder.setBody(body);
+        }
+
+        return AndroidConfig.builder()
+                .setPriority(AndroidConfig.Priority.HIGH)
+                .setNotification(notificationBuilder
+                        .setChannelId(ANDROID_CHANNEL_ID)
+                        .build())
+                .build();
+    }
+
+    private static ApnsConfig buildApnsConfig(
+            String title,
+            String body,
+            String titleLocKey,
+            List<String> titleLocArgs,
+            String bodyLocKey,
+            List<String> bodyLocArgs
+    ) {
+        ApsAlert.Builder alertBuilder = ApsAlert.builder();
+
+        // Only set static title/body if no localization keys are provided
+        // When localization keys are set, they take precedence
+        if (!isBlank(titleLocKey)) {
+            alertBuilder.setTitleLocalizationKey(titleLocKey);
+            if (titleLocArgs != null && !titleLocArgs.isEmpty()) {
+                alertBuilder.addAllTitleLocArgs(titleLocArgs);
+            }
+        } else if (!isBlank(title)) {
+            alertBuilder.setTitle(title);
+        }
+
+        if (!isBlank(bodyLocKey)) {
+            alertBuilder.setLocalizationKey(bodyLocKey);
+            if (bodyLocArgs != null && !bodyLocArgs.isEmpty()) {
+                alertBuilder.addAllLocalizationArgs(bodyLocArgs);
+            }
+        } else if (!isBlank(body)) {
+            alertBuilder.setBody(body);
+        }
+
+        return ApnsConfig.builder()
+                .setAps(Aps.builder()
+                        .setAlert(alertBuilder.build())
+                        .build())
+                .build();
+    }
+
+    private static List<String> copy(List<String> values) {
+        return values == null ? null : Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
@@ -0,0 +1,109 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams a whole table as NDJSON (one JSON object per row and line), in rowid order and chunks of
+ * {@link #CHUNK_SIZE}: memory stays bounded by one chunk whatever the table size. Each chunk is
+ * read into memory and the read connection released before it is written, so a slow or stalled
+ * client never holds one of the few readers (the Kafka consumer's lookups need them) or the WAL
+ * snapshot that keeps checkpoints from completing. Rows written while the export runs may or may
+ * not be included.
+ */
+final class NdjsonExport {
+
+    static final int CHUNK_SIZE = 1000;
+
+    // The output belongs to the caller, closing the generator must not close it
+    private static final JsonFactory JSON = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    private NdjsonExport() {
+    }
+
+    /**
+     * Column to field mapping from (column, field) pairs, in output order
+     */
+    static Map<String, String> columns(String... columnsAndFields) {
+        Map<String, String> columns = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < columnsAndFields.length; i += 2) {
+            columns.put(columnsAndFields[i], columnsAndFields[i + 1]);
+        }
+        return columns;
+    }
+
+    /**
+     * @return number of rows written
+     */
+    static long export(SqliteConnectionPool pool, OutputStream out, String table, Map<String, String> columns)
+            throws IOException {
+        final String sql = "SELECT rowid, " + String.join(", ", columns.keySet()) + " FROM " + table +
+                " WHERE rowid > ? ORDER BY rowid LIMIT ?";
+        String[] fields = columns.values().toArray(String[]::new);
+        long written = 0;
+        try (JsonGenerator json = JSON.createGenerator(out)) {
+            // Objects are separated by the newline written after each of them
+            json.setRootValueSeparator(null);
+            long after = 0;
+            while (true) {
+                long from = after;
+                // Row values with the rowid first; the connection goes back to the pool before writing
+                List<Object[]> rows = pool.read(connection -> {
+                    List<Object[]> chunk = new ArrayList<>(CHUNK_SIZE);
+                    try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                        ps.setLong(1, from);
+                        ps.setInt(2, CHUNK_SIZE);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                Object[] row = new Object[fields.length + 1];
+                                for (int i = 0; i < row.length; i++) {
+                                    row[i] = rs.getObject(i + 1);
+                                }
+                                chunk.add(row);
+                            }
+                        }
+                    }
+                    return chunk;
+                });
+                if (rows.isEmpty()) {
+                    return written;
+                }
+                for (Object[] row : rows) {
+                    writeRow(json, row, fields);
+                }
+                json.flush();
+                written += rows.size();
+                after = ((Number) rows.get(rows.size() - 1)[0]).longValue();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to export " + table + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeRow(JsonGenerator json, Object[] row, String[] fields) throws IOException {
+        json.writeStartObject();
+        for (int i = 0; i < fields.length; i++) {
+            Object value = row[i + 1];
+            if (value instanceof Number number) {
+                json.writeNumberField(fields[i], number.longValue());
+            } else {
+                json.writeStringField(fields[i], value == null ? null : value.toString());
+            }
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+}
@@ -0,0 +1,231 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters for the notification pipeline (consume → resolve → send → cleanup),
+ * exported in Prometheus format on /q/metrics.
+ * Tagged counters are created on first use and cached, so the hot paths never go back to the registry.
+ */
+@Startup
+@ApplicationScoped
+public class NotificationMetrics {
+
+    /** Reasons a Kafka record is dropped before a notification is sent */
+    public static final String SKIP_SCHEMA = "schema";
+    public static final String SKIP_ORIGIN = "origin";
+    public static final String SKIP_NO_DATA = "no_data";
+    public static final String SKIP_NOT_RELEVANT = "not_relevant";
+    public static final String SKIP_NO_AUDIENCE = "no_audience";
+    public static final String SKIP_PARSE_ERROR = "parse_error";
+    public static final String SKIP_DUPLICATE = "duplicate";
+
+    @Inject
+    MeterRegistry registry;
+
+    private Timer recordProcessing;
+    private Timer tokenResolution;
+    private DistributionSummary audienceSize;
+    private DistributionSummary tokenWriteGroupSize;
+    private Counter tokensRemoved;
+    private Counter retries;
+    private Timer outboxLag;
+    private Counter outboxRetried;
+    private Counter outboxDropped;
+    private final Map<String, Counter> skipped = new ConcurrentHashMap<>();
+    private final Map<String, Timer> sendLatency = new ConcurrentHashMap<>();
+    private final Map<String, Counter> sendResults = new ConcurrentHashMap<>();
+    private final Map<String, Timer> rateLimitWait = new ConcurrentHashMap<>();
+    private final Map<String, Counter> deadLettered = new ConcurrentHashMap<>();
+    private Counter deadLetterReplayed;
+    private Counter coalesced;
+
+    @PostConstruct
+    void init() {
+        recordProcessing = Timer.builder("onecare.kafka.record.processing")
+                .description("Time to parse and classify one Kafka record")
+                .publishPercentileHistogram()
+                .register(registry);
+        tokenResolution = Timer.builder("onecare.tokens.resolution")
+                .description("Time to resolve the recipient tokens of a Kafka batch")
+                .publishPercentileHistogram()
+                .register(registry);
+        audienceSize = DistributionSummary.builder("onecare.tokens.audience.size")
+                .description("Number of tokens targeted by one notification")
+                .baseUnit("tokens")
+                .publishPercentileHistogram()
+                .register(registry);
+        tokenWriteGroupSize = DistributionSummary.builder("onecare.tokens.group.commit.size")
+                .description("Token registrations/unregistrations committed in one transaction")
+                .baseUnit("writes")
+                .publishPercentileHistogram()
+                .register(registry);
+        retries = Counter.builder("onecare.fcm.retries")
+                .description("Tokens sent again after a transient FCM failure")
+                .register(registry);
+        tokensRemoved = Counter.builder("onecare.tokens.invalid.removed")
+                .description("Tokens removed after FCM reported them as invalid")
+                .register(registry);
+        outboxLag = Timer.builder("onecare.outbox.delivery.lag")
+                .description("Time from queuing a notification in the outbox to its delivery")
+                .publishPercentileHistogram()
+                .register(registry);
+        deadLetterReplayed = Counter.builder("onecare.deadletter.replayed")
+                .description("Dead-lettered records replayed into the pipeline")
+                .register(registry);
+        coalesced = Counter.builder("onecare.kafka.events.coalesced")
+                .description("Ticket changes merged into the push of an earlier change")
+                .register(registry);
+        outboxRetried = outboxFailureCounter("retried");
+        outboxDropped = outboxFailureCounter("dropped");
+    }
+
+    private Counter outboxFailureCounter(String outcome) {
+        return Counter.builder("onecare.outbox.failures")
+                .description("Outbox entries whose send failed as a whole")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    public void recordProcessing(long startNanos) {
+        recordProcessing.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void skipped(String reason) {
+        skipped.computeIfAbsent(reason, r -> Counter.builder("onecare.kafka.events.skipped")
+                .description("Kafka records dropped without sending a notification")
+                .tag("reason", r)
+                .register(registry)).increment();
+    }
+
+    public void tokenResolution(long startNanos) {
+        tokenResolution.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void audienceSize(int tokens) {
+        audienceSize.record(tokens);
+    }
+
+    /**
+     * Records the latency of one FCM request (a multicast chunk or a topic send).
+     */
+    public void sendLatency(String type, boolean success, long startNanos) {
+        String key = type + (success ? ":success" : ":error");
+        sendLatency.computeIfAbsent(key, k -> Timer.builder("onecare.fcm.send")
+                .description("Latency of FCM send requests")
+                .tag("type", type)
+                .tag("outcome", success ? "success" : "error")
+                .publishPercentileHistogram()
+                .register(registry)).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts the final per-token outcomes of a multicast (after retries), failures broken down by MessagingErrorCode.
+     */
+    public void sendResults(List<NotificationResponse.NotificationResult> results) {
+        int successes = 0;
+        for (NotificationResponse.NotificationResult result : results) {
+            if (result.isSuccess()) {
+                successes++;
+            } else {
+                sendResult(result.getErrorCode() != null ? result.getErrorCode() : "UNKNOWN", 1);
+            }
+        }
+        if (successes > 0) {
+            sendResult("", successes);
+        }
+    }
+
+    /**
+     * Counts tokens that failed because their whole request failed.
+     */
+    public void sendFailures(Throwable cause, int tokens) {
+        sendResult(FirebaseService.errorCode(cause), tokens);
+    }
+
+    private void sendResult(String errorCode, int count) {
+        sendResults.computeIfAbsent(errorCode, code -> Counter.builder("onecare.fcm.messages")
+                .description("Per-token FCM send outcomes")
+                .tag("result", code.isEmpty() ? "success" : "failure")
+                .tag("error_code", code.isEmpty() ? "none" : code)
+                .register(registry)).increment(count);
+    }
+
+    /**
+     * Records how long a send waited for the FCM rate limiter (zero when it went straight through).
+     */
+    public void rateLimitWait(String caller, long waitedNanos) {
+        rateLimitWait.computeIfAbsent(caller, c -> Timer.builder("onecare.fcm.ratelimit.wait")
+                .description("Time FCM sends waited for the shared rate limiter")
+                .tag("caller", c)
+                .publishPercentileHistogram()
+                .register(registry)).record(waitedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void retried(int tokens) {
+        retries.increment(tokens);
+    }
+
+    public void tokenWriteGroup(int writes) {
+        tokenWriteGroupSize.record(writes);
+    }
+
+    public void tokensRemoved(int count) {
+        if (count > 0) {
+            tokensRemoved.increment(count);
+        }
+    }
+
+    public void outboxDelivered(long createdAtMillis) {
+        outboxLag.record(Math.max(0, System.currentTimeMillis() - createdAtMillis), TimeUnit.MILLISECONDS);
+    }
+
+    public void outboxFailure(boolean retried) {
+        (retried ? outboxRetried : outboxDropped).increment();
+    }
+
+    public void deadLettered(String reason) {
+        deadLettered.computeIfAbsent(reason, r -> Counter.builder("onecare.deadletter.records")
+                .description("Records written to the dead-letter topic")
+                .tag("reason", r)
+                .register(registry)).increment();
+    }
+
+    public void coalesced() {
+        coalesced.increment();
+    }
+
+    public void deadLetterReplayed() {
+        deadLetterReplayed.increment();
+    }
+
+    public void registerOutboxGauge(Supplier<Number> pending) {
+        Gauge.builder("onecare.outbox.pending", pending)
+                .description("Notifications waiting in the outbox")
+                .register(registry);
+    }
+
+    public void registerTokenGauges(Supplier<Number> tokens, Supplier<Number> users) {
+        Gauge.builder("onecare.tokens.registered", tokens)
+                .description("Device tokens currently registered")
+                .register(registry);
+        Gauge.builder("onecare.tokens.users", users)
+                .description("Users with at least one registered device")
+                .register(registry);
+    }
+}
@@ -0,0 +1,520 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.firebase.messaging.MessagingErrorCode;
+import io.quarkus.runtime.Startup;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue between the Kafka consumer and FCM, kept in tokens.db.
+ * The consumer only inserts the resolved notifications of a batch (one transaction) and returns,
+ * so consumption no longer waits on FCM. A fixed set of delivery workers claims entries in id
+ * order, sends them and deletes them; an entry whose send failed as a whole is retried with
+ * backoff up to maxAttempts times and then moved to the {@link DeadLetterService}. When only some
+ * multicast chunks failed, the entry is narrowed to their tokens and retried the same way.
+ * A row that cannot be decoded is dead-lettered as it is stored and deleted, so it cannot block
+ * the head of the queue.
+ * Claims left by a previous process are released on startup, so delivery resumes after a restart
+ * (at least once: an entry sent right before a crash goes out again).
+ */
+@Startup
+@ApplicationScoped
+public class NotificationOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationOutbox.class.getName());
+
+    private static final TypeReference<List<String>> STRING_LIST = new TypeReference<>() { };
+    private static final TypeReference<Map<String, String>> STRING_MAP = new TypeReference<>() { };
+    // Total time shutdown waits for the workers; entries still in flight then stay claimed
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final Set<String> PRUNABLE_ERROR_CODES = Set.of(
+            MessagingErrorCode.UNREGISTERED.name(),
+            MessagingErrorCode.INVALID_ARGUMENT.name());
+
+    /** How an entry is addressed: device tokens (multicast) or team topics (one message) */
+    public enum Kind { TOKENS, TOPICS }
+
+    public record Entry(
+            long id,
+            String ticketId,
+            Kind kind,
+            List<String> targets,
+            Map<String, String> data,
+            int attempts,
+            long createdAt
+    ) {
+
+        public static Entry forTokens(String ticketId, List<String> tokens, Map<String, String> data) {
+            return new Entry(0, ticketId, Kind.TOKENS, tokens, data, 0, 0);
+        }
+
+        public static Entry forTopics(String ticketId, List<String> topics, Map<String, String> data) {
+            return new Entry(0, ticketId, Kind.TOPICS, topics, data, 0, 0);
+        }
+    }
+
+    @Inject
+    SqliteConnectionPool pool;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    FirebaseService firebaseService;
+
+    @Inject
+    TokenStorageService tokenStorageService;
+
+    @Inject
+    NotificationMetrics metrics;
+
+    @Inject
+    DeadLetterService deadLetters;
+
+    @ConfigProperty(name = "outbox.workers", defaultValue = "4")
+    int workers;
+
+    @ConfigProperty(name = "outbox.poll-interval-ms", defaultValue = "1000")
+    long pollIntervalMs;
+
+    @ConfigProperty(name = "outbox.max-attempts", defaultValue = "5")
+    int maxAttempts;
+
+    @ConfigProperty(name = "outbox.retry-backoff-ms", defaultValue = "5000")
+    long retryBackoffMs;
+
+    private final AtomicLong pending = new AtomicLong();
+    // Released on every enqueue so idle workers look for work before their poll interval ends
+    private final Semaphore wakeUp = new Semaphore(0);
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private volatile boolean running;
+
+    @PostConstruct
+    void init() {
+        try {
+            pool.write(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS outbox (
+                          id INTEGER PRIMARY KEY AUTOINCREMENT,
+                          ticket_id TEXT NOT NULL,
+                          kind TEXT NOT NULL,
+                          targets TEXT NOT NULL,
+                          data TEXT NOT NULL,
+                          attempts INTEGER NOT NULL DEFAULT 0,
+                          next_attempt_at INTEGER NOT NULL,
+                          claimed_at INTEGER,
+                          created_at INTEGER NOT NULL
+                        )
+                        """);
+                    // Whatever was in flight when the previous process stopped is up for delivery again
+                    int released = stmt.executeUpdate("UPDATE outbox SET claimed_at = NULL WHERE claimed_at IS NOT NULL");
+                    if (released > 0) {
+                        LOGGER.warning(String.format("Released %d outbox entries claimed before the last shutdown", released));
+                    }
+                }
+                return null;
+            });
+            pending.set(pool.read(connection -> {
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM outbox")) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            }));
+            metrics.registerOutboxGauge(pending::get);
+            LOGGER.info("NotificationOutbox initialized (" + pending.get() + " entries pending)");
+        } catch (SQLException e) {
+            LOGGER.severe("Failed to initialize notification outbox: " + e.getMessage());
+            throw new IllegalStateException("Cannot initialize notification outbox", e);
+        }
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        running = true;
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            workerThreads.add(Thread.ofPlatform().name("outbox-worker-" + i).daemon().start(this::runWorker));
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        running = false;
+        // Interrupts idle workers and in-flight sends alike: an abandoned entry stays claimed and is
+        // released for delivery by the next start
+        workerThreads.forEach(Thread::interrupt);
+        long deadline = System.nanoTime() + SHUTDOWN_TIMEOUT.toNanos();
+        for (Thread worker : workerThreads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                worker.join(Duration.ofNanos(remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long alive = workerThreads.stream().filter(Thread::isAlive).count();
+        if (alive > 0) {
+            LOGGER.warning(String.format("%d outbox workers still running after %d s, leaving their entries claimed",
+                    alive, SHUTDOWN_TIMEOUT.toSeconds()));
+        }
+    }
+
+    /**
+     * Stores the notifications of one Kafka batch in a single transaction and wakes the workers.
+     * @throws SQLException when the batch could not be stored (nothing of it was)
+     */
+    public void enqueue(List<Entry> entries) throws SQLException {
+        enqueue(entries, null);
+    }
+
+    /**
+     * Like {@link #enqueue(List)}, but also runs {@code alongside} in the same transaction, so the caller's own
+     * bookkeeping commits or rolls back together with the entries.
+     * @throws SQLException when the transaction failed (neither the entries nor {@code alongside} were applied)
+     */
+    public void enqueue(List<Entry> entries, SqliteConnectionPool.SqlWork<?> alongside) throws SQLException {
+        if (entries.isEmpty() && alongside == null) {
+            return;
+        }
+        List<String[]> encoded = new ArrayList<>(entries.size());
+        try {
+            for (Entry entry : entries) {
+                encoded.add(new String[] {
+                        objectMapper.writeValueAsString(entry.targets()),
+                        objectMapper.writeValueAsString(entry.data())});
+            }
+        } catch (JsonProcessingException e) {
+            throw new SQLException("Cannot encode outbox entry: " + e.getMessage(), e);
+        }
+
+        final String sql = "INSERT INTO outbox (ticket_id, kind, targets, data, next_attempt_at, created_at) " +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+        long now = System.currentTimeMillis();
+        pool.writeInTransaction(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                for (int i = 0; i < entries.size(); i++) {
+                    ps.setString(1, entries.get(i).ticketId());
+                    ps.setString(2, entries.get(i).kind().name());
+                    ps.setString(3, encoded.get(i)[0]);
+                    ps.setString(4, encoded.get(i)[1]);
+                    ps.setLong(5, now);
+                    ps.setLong(6, now);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            if (alongside != null) {
+                alongside.execute(connection);
+            }
+            return null;
+        });
+        if (entries.isEmpty()) {
+            return;
+        }
+        pending.addAndGet(entries.size());
+        wakeUp.release(Math.max(1, workers));
+    }
+
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    private void runWorker() {
+        while (running) {
+            Entry entry;
+            try {
+                entry = claimNext();
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Failed to claim outbox entry", e);
+                entry = null;
+            }
+            if (entry != null) {
+                deliver(entry);
+                continue;
+            }
+            try {
+                wakeUp.tryAcquire(pollIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claims the oldest entry that is due, or returns null when there is none. Rows that cannot be
+     * decoded are deleted in the claiming transaction and dead-lettered once it committed.
+     */
+    Entry claimNext() throws SQLException {
+        final String select = "SELECT id, ticket_id, kind, targets, data, attempts, created_at FROM outbox " +
+                "WHERE claimed_at IS NULL AND next_attempt_at <= ? ORDER BY id LIMIT 1";
+        final String claim = "UPDATE outbox SET claimed_at = ? WHERE id = ?";
+        final String delete = "DELETE FROM outbox WHERE id = ?";
+        while (true) {
+            long now = System.currentTimeMillis();
+            List<RuntimeException> rejected = new ArrayList<>(1);
+            List<Map<String, Object>> rejectedRows = new ArrayList<>(1);
+            Entry claimed = pool.writeInTransaction(connection -> {
+                Entry entry;
+                long id;
+                try (PreparedStatement ps = connection.prepareStatement(select)) {
+                    ps.setLong(1, now);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) {
+                            return null;
+                        }
+                        id = rs.getLong("id");
+                        try {
+                            entry = new Entry(
+                                    id,
+                                    rs.getString("ticket_id"),
+                                    Kind.valueOf(rs.getString("kind")),
+                                    decode(rs.getString("targets"), STRING_LIST),
+                                    decode(rs.getString("data"), STRING_MAP),
+                                    rs.getInt("attempts"),
+                                    rs.getLong("created_at"));
+                        } catch (IllegalArgumentException | NullPointerException | UncheckedIOException e) {
+                            Map<String, Object> row = new TreeMap<>();
+                            for (String column : List.of("id", "ticket_id", "kind", "targets", "data", "attempts", "created_at")) {
+                                row.put(column, rs.getObject(column));
+                            }
+                            rejectedRows.add(row);
+                            rejected.add(e);
+                            entry = null;
+                        }
+                    }
+                }
+                try (PreparedStatement ps = connection.prepareStatement(entry != null ? claim : delete)) {
+                    if (entry != null) {
+                        ps.setLong(1, now);
+                        ps.setLong(2, id);
+                    } else {
+                        ps.setLong(1, id);
+                    }
+                    ps.executeUpdate();
+                }
+                return entry;
+            });
+            if (rejected.isEmpty()) {
+                return claimed;
+            }
+            Map<String, Object> row = rejectedRows.get(0);
+            LOGGER.log(Level.SEVERE, "Dead-lettering undecodable outbox entry " + row.get("id"), rejected.get(0));
+            pending.decrementAndGet();
+            metrics.outboxFailure(false);
+            deadLetters.deadLetterUndecodable(String.valueOf(row.get("ticket_id")), encodeRow(row), rejected.get(0));
+        }
+    }
+
+    private <T> T decode(String json, TypeReference<T> type) {
+        try {
+            T value = objectMapper.readValue(json, type);
+            if (value == null) {
+                throw new IllegalArgumentException("null outbox column");
+            }
+            return value;
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String encodeRow(Map<String, Object> row) {
+        try {
+            return objectMapper.writeValueAsString(row);
+        } catch (JsonProcessingException e) {
+            return String.valueOf(row);
+        }
+    }
+
+    /**
+     * Sends one entry and removes it. Per-token failures are final at this point (FirebaseService
+     * already retried the transient ones); a send that failed as a whole is rescheduled, and so are
+     * the tokens of chunks whose request failed, nothing having been sent to them.
+     */
+    void deliver(Entry entry) {
+        try {
+            if (entry.kind() == Kind.TOPICS) {
+                String messageId = await(firebaseService.sendToTopicsAsync(
+                        FcmRateLimiter.Caller.KAFKA, entry.targets(), entry.data()));
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(String.format("Sent notification for ticket %s to topics %s (messageId=%s)",
+                            entry.ticketId(), entry.targets(), messageId));
+                }
+            } else {
+                NotificationResponse response = await(firebaseService.sendMulticastNotificationAsync(
+                        FcmRateLimiter.Caller.KAFKA,
+                        entry.targets(),
+                        null, // No title - client will translate
+                        null, // No body - client will translate
+                        entry.data(),
+                        null,
+                        null,
+                        null,
+                        null
+                ));
+                handleResults(entry, response);
+                if (!response.getUnsentTokens().isEmpty()) {
+                    Throwable cause = new IllegalStateException(String.format("%d of %d tokens not sent: %s",
+                            response.getUnsentTokens().size(), entry.targets().size(),
+                            unsentError(response)));
+                    failed(new Entry(entry.id(), entry.ticketId(), entry.kind(), response.getUnsentTokens(),
+                            entry.data(), entry.attempts(), entry.createdAt()), cause);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down: the entry stays claimed until the next start releases it
+            LOGGER.info(String.format("Abandoned delivery of ticket %s on shutdown", entry.ticketId()));
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            failed(entry, cause);
+            return;
+        }
+        metrics.outboxDelivered(entry.createdAt());
+        remove(entry);
+    }
+
+    /**
+     * Waits for a send, unlike join() giving up when the worker is interrupted
+     */
+    private static <T> T await(CompletionStage<T> stage) throws InterruptedException {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private void handleResults(Entry entry, NotificationResponse response) {
+        Map<String, Integer> failuresByCode = new TreeMap<>();
+        Set<String> invalidTokens = new HashSet<>();
+        // A failed request's error code is not about its tokens; they are retried, never pruned
+        Set<String> unsent = new HashSet<>(response.getUnsentTokens());
+        for (NotificationResponse.NotificationResult r : response.getResults()) {
+            if (!r.isSuccess()) {
+                failuresByCode.merge(String.valueOf(r.getErrorCode()), 1, Integer::sum);
+                if (isPermanentTokenError(r.getErrorCode()) && !unsent.contains(r.getToken())) {
+                    invalidTokens.add(r.getToken());
+                }
+            }
+        }
+
+        // Failures are summarized per error code, one line per entry; clean sends only at FINE
+        Level level = failuresByCode.isEmpty() ? Level.FINE : Level.INFO;
+        if (LOGGER.isLoggable(level)) {
+            LOGGER.log(level, String.format(
+                    "Sent notification for ticket %s to %d tokens (success=%d, failure=%d%s)",
+                    entry.ticketId(), response.getResults().size(),
+                    response.getSuccessCount(), response.getFailureCount(),
+                    failuresByCode.isEmpty() ? "" : ", errors=" + failuresByCode));
+        }
+
+        // One transaction for every token FCM rejected as no longer valid
+        if (!invalidTokens.isEmpty()) {
+            metrics.tokensRemoved(tokenStorageService.unregisterTokens(invalidTokens));
+        }
+    }
+
+    private static String unsentError(NotificationResponse response) {
+        Set<String> unsent = new HashSet<>(response.getUnsentTokens());
+        for (NotificationResponse.NotificationResult r : response.getResults()) {
+            if (unsent.contains(r.getToken())) {
+                return r.getErrorCode() + " " + r.getError();
+            }
+        }
+        return "unknown error";
+    }
+
+    /**
+     * Only these codes mean the token itself will never work again; anything else (quota,
+     * unavailability, auth) is transient or not the device's fault and keeps the token.
+     */
+    private static boolean isPermanentTokenError(String errorCode) {
+        return PRUNABLE_ERROR_CODES.contains(errorCode);
+    }
+
+    private void failed(Entry entry, Throwable cause) {
+        int attempts = entry.attempts() + 1;
+        if (attempts >= maxAttempts) {
+            LOGGER.log(Level.SEVERE, String.format("Dead-lettering notification for ticket %s after %d attempts",
+                    entry.ticketId(), attempts), cause);
+            metrics.outboxFailure(false);
+            deadLetters.deadLetter(entry, cause);
+            remove(entry);
+            return;
+        }
+        long delay = retryBackoffMs << Math.min(attempts - 1, 16);
+        LOGGER.warning(String.format("Failed to send notification for ticket %s (%s), attempt %d of %d, next in %d ms",
+                entry.ticketId(), cause.getMessage(), attempts, maxAttempts, delay));
+        metrics.outboxFailure(true);
+        // targets may have been narrowed to the tokens still to send
+        final String sql = "UPDATE outbox SET targets = ?, attempts = ?, next_attempt_at = ?, claimed_at = NULL WHERE id = ?";
+        try {
+            String targets = objectMapper.writeValueAsString(entry.targets());
+            pool.write(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, targets);
+                    ps.setInt(2, attempts);
+                    ps.setLong(3, System.currentTimeMillis() + delay);
+                    ps.setLong(4, entry.id());
+                    return ps.executeUpdate();
+                }
+            });
+        } catch (SQLException | JsonProcessingException e) {
+            // The claim stays; the entry is picked up again after the next restart
+            LOGGER.severe("Failed to reschedule outbox entry " + entry.id() + ": " + e.getMessage());
+        }
+    }
+
+    private void remove(Entry entry) {
+        try {
+            int rows = pool.write(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement("DELETE FROM outbox WHERE id = ?")) {
+                    ps.setLong(1, entry.id());
+                    return ps.executeUpdate();
+                }
+            });
+            if (rows > 0) {
+                pending.decrementAndGet();
+            }
+        } catch (SQLException e) {
+            // The claim stays; the entry is sent again after the next restart
+            LOGGER.severe("Failed to remove outbox entry " + entry.id() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.sqlite.SQLiteConfig;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Shared access to tokens.db for every storage service.
+ * Reads are served by a small pool of query-only connections, while all writes go through a
+ * single connection guarded by a fair lock, so writers queue in the JVM instead of failing with
+ * SQLITE_BUSY. WAL journaling lets the readers proceed while a write is in progress.
+ */
+@ApplicationScoped
+public class SqliteConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(SqliteConnectionPool.class.getName());
+
+    private static final String DB_URL_PREFIX = "jdbc:sqlite:";
+
+    @ConfigProperty(name = "sqlite.path", defaultValue = "tokens.db")
+    String databasePath;
+
+    @ConfigProperty(name = "sqlite.read-pool-size", defaultValue = "4")
+    int readPoolSize;
+
+    @ConfigProperty(name = "sqlite.busy-timeout-ms", defaultValue = "5000")
+    int busyTimeoutMs;
+
+    @ConfigProperty(name = "sqlite.journal-mode", defaultValue = "WAL")
+    String journalMode;
+
+    @ConfigProperty(name = "sqlite.synchronous", defaultValue = "NORMAL")
+    String synchronous;
+
+    private Connection writeConnection;
+    private BlockingQueue<Connection> readConnections;
+    private final List<Connection> allReadConnections = new ArrayList<>();
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T execute(Connection connection) throws SQLException;
+    }
+
+    @PostConstruct
+    void init() {
+        try {
+            Path dbPath = Path.of(databasePath).toAbsolutePath();
+            if (dbPath.getParent() != null && !Files.exists(dbPath.getParent())) {
+                Files.createDirectories(dbPath.getParent());
+            }
+            Class.forName("org.sqlite.JDBC");
+            String url = DB_URL_PREFIX + dbPath;
+
+            // The writer is opened first so the WAL/shm files exist before readers attach
+            writeConnection = newConfig().createConnection(url);
+
+            int poolSize = Math.max(1, readPoolSize);
+            readConnections = new ArrayBlockingQueue<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                Connection connection = newConfig().createConnection(url);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("PRAGMA query_only = ON");
+                }
+                allReadConnections.add(connection);
+                readConnections.add(connection);
+            }
+
+            LOGGER.info(String.format("SQLite pool initialized at %s (journal=%s, synchronous=%s, readers=%d)",
+                    dbPath, journalMode, synchronous, poolSize));
+        } catch (Exception e) {
+            LOGGER.severe("Failed to initialize SQLite connection pool: " + e.getMessage());
+            throw new IllegalStateException("Cannot initialize SQLite connection pool", e);
+        }
+    }
+
+    private SQLiteConfig newConfig() {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.valueOf(journalMode.trim().toUpperCase()));
+        config.setSynchronous(SQLiteConfig.SynchronousMode.valueOf(synchronous.trim().toUpperCase()));
+        config.setBusyTimeout(busyTimeoutMs);
+        return config;
+    }
+
+    @PreDestroy
+    void close() {
+        writeLock.lock();
+        try {
+            closeQuietly(writeConnection);
+            allReadConnections.forEach(this::closeQuietly);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warning("Failed to close SQLite connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run a query on one of the pooled read connections
+     */
+    public <T> T read(SqlWork<T> work) throws SQLException {
+        Connection connection;
+        try {
+            connection = readConnections.poll(busyTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+        if (connection == null) {
+            throw new SQLException("Timed out waiting for a read connection");
+        }
+        try {
+            return work.execute(connection);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    /**
+     * Run an auto-commit statement on the single writer connection
+     */
+    public <T> T write(SqlWork<T> work) throws SQLException {
+        writeLock.lock();
+        try {
+            return work.execute(writeConnection);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Run work on the writer connection inside one transaction, rolling back on failure
+     */
+    public <T> T writeInTransaction(SqlWork<T> work) throws SQLException {
+        writeLock.lock();
+        try {
+            writeConnection.setAutoCommit(false);
+            try {
+                T result = work.execute(writeConnection);
+                writeConnection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                writeConnection.rollback();
+                throw e;
+            } finally {
+                writeConnection.setAutoCommit(true);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mirrors user_teams into one FCM topic per team, so a team-wide notification is a single topic
+ * message instead of a multicast over every member's tokens.
+ * Membership and token changes are queued on a single thread and applied in order, which keeps
+ * subscribe/unsubscribe of the same token from overtaking each other and keeps FCM round trips
+ * off the REST and Kafka threads. Disabled by default: the topics have to be populated (see
+ * teams.topics.sync-on-startup) before the consumer can rely on them.
+ */
+@ApplicationScoped
+public class TeamTopicService {
+
+    private static final Logger LOGGER = Logger.getLogger(TeamTopicService.class.getName());
+
+    @ConfigProperty(name = "teams.topics.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "teams.topics.prefix", defaultValue = "team_")
+    String topicPrefix;
+
+    @ConfigProperty(name = "teams.topics.sync-on-startup", defaultValue = "false")
+    boolean syncOnStartup;
+
+    @Inject
+    FirebaseService firebaseService;
+
+    @Inject
+    UserTeamService userTeamService;
+
+    @Inject
+    TokenStorageService tokenStorageService;
+
+    private ExecutorService executor;
+
+    /**
+     * Created with the bean, not on startup: token registrations can reach the hooks before the
+     * StartupEvent. The thread itself only starts with the first task.
+     */
+    @PostConstruct
+    void init() {
+        executor = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("team-topics").daemon().factory());
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        if (enabled && syncOnStartup) {
+            submit("startup sync", this::syncAll);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * FCM topic of a team. Topic names only allow [a-zA-Z0-9-_.~%], so anything else in the team id
+     * is percent-encoded (UTF-8), which keeps the mapping one-to-one.
+     */
+    public String topicFor(String teamId) {
+        StringBuilder topic = new StringBuilder(topicPrefix.length() + teamId.length());
+        topic.append(topicPrefix);
+        for (byte b : teamId.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~') {
+                topic.append(c);
+            } else {
+                topic.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return topic.toString();
+    }
+
+    /**
+     * Users were added to a team: subscribe all their devices to the team topic
+     */
+    public void membersAdded(String teamId, Collection<String> userIds) {
+        if (!enabled) {
+            return;
+        }
+        List<String> users = List.copyOf(userIds);
+        submit("add members to " + teamId, () ->
+                firebaseService.subscribeToTopic(tokensOf(users), topicFor(teamId)));
+    }
+
+    /**
+     * Users left a team: unsubscribe their devices from the team topic
+     */
+    public void membersRemoved(String teamId, Collection<String> userIds) {
+        if (!enabled) {
+            return;
+        }
+        List<String> users = List.copyOf(userIds);
+        submit("remove members from " + teamId, () ->
+                firebaseService.unsubscribeFromTopic(tokensOf(users), topicFor(teamId)));
+    }
+
+    /**
+     * A user left several teams at once
+     */
+    public void teamsLeft(String userId, Collection<String> teamIds) {
+        if (!enabled) {
+            return;
+        }
+        List<String> teams = List.copyOf(teamIds);
+        submit("remove " + userId + " from teams", () -> {
+            List<String> tokens = tokenStorageService.getTokensForUser(userId);
+            for (String teamId : teams) {
+                firebaseService.unsubscribeFromTopic(tokens, topicFor(teamId));
+            }
+        });
+    }
+
+    /**
+     * A device token was (re)registered. When it moved from another user it leaves the teams of
+     * that user that the new owner is not part of.
+     */
+    public void tokenRegistered(String userId, String deviceToken, String previousUserId) {
+        if (!enabled) {
+            return;
+        }
+        submit("register token", () -> {
+            List<String> teams = userTeamService.getTeamsForUser(userId);
+            if (previousUserId != null && !previousUserId.equals(userId)) {
+                Set<String> leftTeams = new HashSet<>(userTeamService.getTeamsForUser(previousUserId));
+                teams.forEach(leftTeams::remove);
+                for (String teamId : leftTeams) {
+                    firebaseService.unsubscribeFromTopic(List.of(deviceToken), topicFor(teamId));
+                }
+            }
+            for (String teamId : teams) {
+                firebaseService.subscribeToTopic(List.of(deviceToken), topicFor(teamId));
+            }
+        });
+    }
+
+    /**
+     * A device token was removed; userId is the owner it had before removal
+     */
+    public void tokenUnregistered(String userId, String deviceToken) {
+        if (!enabled || userId == null) {
+            return;
+        }
+        submit("unregister token", () -> {
+            for (String teamId : userTeamService.getTeamsForUser(userId)) {
+                firebaseService.unsubscribeFromTopic(List.of(deviceToken), topicFor(teamId));
+            }
+        });
+    }
+
+    /**
+     * Subscribes every current member's devices to their team topics. Subscribing is idempotent,
+     * so this is safe to run on every start; it does not remove stale subscriptions.
+     */
+    void syncAll() {
+        List<String> teams = userTeamService.getAllTeams();
+        int subscribed = 0;
+        for (String teamId : teams) {
+            subscribed += firebaseService.subscribeToTopic(
+                    tokensOf(userTeamService.getUsersInTeam(teamId)), topicFor(teamId));
+        }
+        LOGGER.info(String.format("Team topics synced: %d teams, %d subscriptions", teams.size(), subscribed));
+    }
+
+    private List<String> tokensOf(Collection<String> userIds) {
+        List<String> tokens = new ArrayList<>();
+        for (String userId : userIds) {
+            tokens.addAll(tokenStorageService.getTokensForUser(userId));
+        }
+        return tokens;
+    }
+
+    /**
+     * Queues a topic update. After shutdown the update is dropped with a warning rather than failing
+     * the registration or membership change that triggered it; the next sync repairs the topics.
+     */
+    private void submit(String description, Runnable task) {
+        if (executor == null || executor.isShutdown()) {
+            LOGGER.warning("Team topic update skipped, service stopped (" + description + ")");
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Team topic update failed (" + description + ")", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warning("Team topic update skipped, service stopped (" + description + ")");
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges a burst of changes of the same ticket (status change, then a note, then an attachment...)
+ * into one push. The first relevant change of a ticket opens a window of windowMs; later changes by
+ * the same actor for the same teams are folded into it (changes arrays concatenated, the most
+ * important bodyKey kept) and the window is handed to the consumer once it ends. The merged array
+ * keeps only the newest changes that fit {@link #MAX_MERGED_CHANGES} and
+ * {@link #MAX_MERGED_CHANGES_BYTES}: FCM rejects a data payload over 4 KB with INVALID_ARGUMENT for
+ * every token, and the outbox prunes tokens on that error. The number of older changes left out is
+ * sent as changesOmitted. A change by
+ * another actor closes the open window first, since the actor is excluded from the audience.
+ * Every window has the same length, so windows end in the order they were opened: they are kept in
+ * one insertion-ordered map and a single timer task wakes up for the oldest one, flushing every
+ * window that is due together. Open windows are flushed on shutdown. They live in memory only and
+ * their Kafka records are acknowledged when they enter a window, so a crash loses up to windowMs of
+ * changes: coalescing trades the outbox's at-least-once delivery for fewer pushes, and is therefore
+ * off unless ttk.coalesce.window-ms is set.
+ */
+@ApplicationScoped
+public class TicketCoalescer {
+
+    private static final Logger LOGGER = Logger.getLogger(TicketCoalescer.class.getName());
+
+    static final int MAX_MERGED_CHANGES = 20;
+    // Leaves room in the 4 KB FCM data payload for the ticket id, keys and user names
+    static final int MAX_MERGED_CHANGES_BYTES = 2048;
+    static final String CHANGES_OMITTED = "changesOmitted";
+
+    @ConfigProperty(name = "ttk.coalesce.window-ms", defaultValue = "0")
+    long windowMs;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    KafkaNotificationConsumer consumer;
+
+    @Inject
+    NotificationMetrics metrics;
+
+    private final Object lock = new Object();
+    // Ordered by opening time, which is also the order in which windows end
+    private final LinkedHashMap<String, Window> windows = new LinkedHashMap<>();
+    private ScheduledExecutorService timer;
+    private boolean flushScheduled;
+    private boolean stopped;
+
+    private static final class Window {
+        KafkaNotificationConsumer.TicketNotification notification;
+        final List<String> payloads = new ArrayList<>(4);
+        final Set<String> dedupKeys = new LinkedHashSet<>(4);
+        final long deadline;
+
+        Window(KafkaNotificationConsumer.TicketNotification notification, String payload, long deadline) {
+            this.notification = notification;
+            this.payloads.add(payload);
+            if (notification.dedupKey() != null) {
+                this.dedupKeys.add(notification.dedupKey());
+            }
+            this.deadline = deadline;
+        }
+
+        boolean accepts(KafkaNotificationConsumer.TicketNotification next) {
+            return Objects.equals(notification.actionUsername(), next.actionUsername())
+                    && notification.teams().equals(next.teams());
+        }
+    }
+
+    @PostConstruct
+    void init() {
+        if (isEnabled()) {
+            timer = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("ttk-coalescer").daemon().factory());
+        }
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        List<Window> remaining;
+        synchronized (lock) {
+            stopped = true;
+            remaining = new ArrayList<>(windows.values());
+            windows.clear();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (!remaining.isEmpty()) {
+            LOGGER.info("Flushing " + remaining.size() + " open coalescing windows on shutdown");
+            flush(remaining);
+        }
+    }
+
+    public boolean isEnabled() {
+        return windowMs > 0;
+    }
+
+    /**
+     * Adds a change to its ticket's window, opening one if needed
+     * @return false when the change was already part of the open window (a duplicate)
+     */
+    public boolean add(KafkaNotificationConsumer.TicketNotification notification, String payload) {
+        Window closed = null;
+        synchronized (lock) {
+            if (stopped) {
+                closed = new Window(notification, payload, 0);
+            } else {
+                Window window = windows.get(notification.ticketId());
+                if (window != null && !window.accepts(notification)) {
+                    closed = windows.remove(notification.ticketId());
+                    window = null;
+                }
+                if (window == null) {
+                    windows.put(notification.ticketId(),
+                            new Window(notification, payload, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs)));
+                    scheduleFlush();
+                } else {
+                    if (notification.dedupKey() != null && !window.dedupKeys.add(notification.dedupKey())) {
+                        return false;
+                    }
+                    window.notification = merge(window.notification, notification);
+                    window.payloads.add(payload);
+                    metrics.coalesced();
+                }
+            }
+        }
+        if (closed != null) {
+            flush(List.of(closed));
+        }
+        return true;
+    }
+
+    KafkaNotificationConsumer.TicketNotification merge(
+            KafkaNotificationConsumer.TicketNotification earlier,
+            KafkaNotificationConsumer.TicketNotification later
+    ) {
+        String titleKey = TtkChangeClassifier.mergedTitleKey(earlier.titleKey(), later.titleKey());
+        String bodyKey = TtkChangeClassifier.higherPriorityBodyKey(earlier.bodyKey(), later.bodyKey());
+        int omitted = Integer.parseInt(earlier.data().getOrDefault(CHANGES_OMITTED, "0"));
+
+        Map<String, String> data = new HashMap<>(later.data());
+        data.put("titleKey", titleKey);
+        data.put("bodyKey", bodyKey);
+        try {
+            JsonNode first = objectMapper.readTree(Objects.requireNonNullElse(earlier.data().get("changes"), "[]"));
+            JsonNode second = objectMapper.readTree(Objects.requireNonNullElse(later.data().get("changes"), "[]"));
+            List<JsonNode> all = new ArrayList<>();
+            first.forEach(all::add);
+            second.forEach(all::add);
+
+            // Newest first until either limit is reached; "[]" and the commas count towards the size
+            int bytes = 2;
+            int kept = 0;
+            while (kept < all.size() && kept < MAX_MERGED_CHANGES) {
+                int size = objectMapper.writeValueAsBytes(all.get(all.size() - 1 - kept)).length + (kept > 0 ? 1 : 0);
+                if (kept > 0 && bytes + size > MAX_MERGED_CHANGES_BYTES) {
+                    break;
+                }
+                bytes += size;
+                kept++;
+            }
+            ArrayNode merged = objectMapper.createArrayNode();
+            merged.addAll(all.subList(all.size() - kept, all.size()));
+            data.put("changes", objectMapper.writeValueAsString(merged));
+            omitted += all.size() - kept;
+        } catch (Exception e) {
+            // The later event's own changes are sent as they are
+            LOGGER.warning("Failed to merge changes arrays: " + e.getMessage());
+        }
+        if (omitted > 0) {
+            data.put(CHANGES_OMITTED, String.valueOf(omitted));
+        }
+        return new KafkaNotificationConsumer.TicketNotification(later.ticketId(), later.actionUsername(),
+                titleKey, bodyKey, later.teams(), data, later.dedupKey());
+    }
+
+    /**
+     * Schedules the timer for the oldest open window. Called with the lock held.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled || windows.isEmpty()) {
+            return;
+        }
+        long delay = windows.values().iterator().next().deadline - System.nanoTime();
+        flushScheduled = true;
+        timer.schedule(this::flushDue, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    private void flushDue() {
+        List<Window> due = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (lock) {
+            flushScheduled = false;
+            Iterator<Window> oldest = windows.values().iterator();
+            while (oldest.hasNext()) {
+                Window window = oldest.next();
+                if (window.deadline > now) {
+                    break;
+                }
+                due.add(window);
+                oldest.remove();
+            }
+            scheduleFlush();
+        }
+        flush(due);
+    }
+
+    private void flush(List<Window> due) {
+        if (due.isEmpty()) {
+            return;
+        }
+        List<KafkaNotificationConsumer.TicketNotification> notifications = new ArrayList<>(due.size());
+        List<String> payloads = new ArrayList<>();
+        Set<String> dedupKeys = new LinkedHashSet<>();
+        for (Window window : due) {
+            notifications.add(window.notification);
+            payloads.addAll(window.payloads);
+            dedupKeys.addAll(window.dedupKeys);
+        }
+        try {
+            consumer.deliver(notifications, payloads, dedupKeys);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to flush coalesced notifications", e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Remembers which ticket changes were already turned into notifications, so a Kafka redelivery
+ * after a rebalance or a duplicate TTK emission is dropped before recipients are resolved.
+ * Keys are (ticketId, lastUpdate, change fingerprint); entries expire after ttlMinutes and at most
+ * maxEntries are kept, oldest first out. Lookups are memory-only. With persist on, keys are also
+ * written to the processed_events table in tokens.db and the unexpired ones are loaded on startup,
+ * so a restart does not reopen the window.
+ */
+@Startup
+@ApplicationScoped
+public class TicketDedupCache {
+
+    private static final Logger LOGGER = Logger.getLogger(TicketDedupCache.class.getName());
+
+    private static final long PURGE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    @Inject
+    SqliteConnectionPool pool;
+
+    @ConfigProperty(name = "ttk.dedup.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "ttk.dedup.max-entries", defaultValue = "100000")
+    int maxEntries;
+
+    @ConfigProperty(name = "ttk.dedup.ttl-minutes", defaultValue = "60")
+    long ttlMinutes;
+
+    @ConfigProperty(name = "ttk.dedup.persist", defaultValue = "false")
+    boolean persist;
+
+    // Insertion ordered, and every entry lives for the same ttl, so the eldest entry expires first
+    private final LinkedHashMap<String, Long> seenAt = new LinkedHashMap<>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private long lastPurge;
+
+    @PostConstruct
+    void init() {
+        if (!enabled || !persist) {
+            return;
+        }
+        try {
+            pool.write(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS processed_events (
+                          dedup_key TEXT PRIMARY KEY,
+                          seen_at INTEGER NOT NULL
+                        )
+                        """);
+                    stmt.execute("CREATE INDEX IF NOT EXISTS idx_processed_events_seen ON processed_events(seen_at)");
+                }
+                return null;
+            });
+            purgeExpired(System.currentTimeMillis());
+            load();
+            LOGGER.info("TicketDedupCache initialized (" + seenAt.size() + " recent ticket changes loaded)");
+        } catch (SQLException e) {
+            LOGGER.severe("Failed to initialize dedup cache storage: " + e.getMessage());
+            throw new IllegalStateException("Cannot initialize dedup cache storage", e);
+        }
+    }
+
+    private void load() throws SQLException {
+        final String sql = "SELECT dedup_key, seen_at FROM processed_events ORDER BY seen_at DESC LIMIT ?";
+        // Newest first, so the cap keeps the most recent keys; re-inserted oldest first below
+        LinkedHashMap<String, Long> newestFirst = new LinkedHashMap<>();
+        pool.read(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setInt(1, Math.max(1, maxEntries));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        newestFirst.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+            }
+            return null;
+        });
+        String[] keys = newestFirst.keySet().toArray(String[]::new);
+        synchronized (seenAt) {
+            for (int i = keys.length - 1; i >= 0; i--) {
+                seenAt.put(keys[i], newestFirst.get(keys[i]));
+            }
+        }
+    }
+
+    /**
+     * Dedup key of a ticket change, or null when the event carries no lastUpdate (nothing tells two
+     * identical-looking changes apart then, so such events are never deduplicated).
+     */
+    public static String key(String ticketId, String lastUpdate, String titleKey, String bodyKey, String changes) {
+        if (lastUpdate == null || lastUpdate.isEmpty()) {
+            return null;
+        }
+        CRC32C fingerprint = new CRC32C();
+        fingerprint.update(String.valueOf(titleKey).getBytes(StandardCharsets.UTF_8));
+        fingerprint.update(0);
+        fingerprint.update(String.valueOf(bodyKey).getBytes(StandardCharsets.UTF_8));
+        fingerprint.update(0);
+        fingerprint.update(String.valueOf(changes).getBytes(StandardCharsets.UTF_8));
+        return ticketId + '|' + lastUpdate + '|' + Long.toHexString(fingerprint.getValue());
+    }
+
+    /**
+     * True when the change was already processed within the ttl
+     */
+    public boolean isDuplicate(String key) {
+        if (!enabled || key == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (seenAt) {
+            Long seen = seenAt.get(key);
+            if (seen == null) {
+                return false;
+            }
+            if (now - seen > TimeUnit.MINUTES.toMillis(ttlMinutes)) {
+                seenAt.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records changes whose notifications were queued. Called only once they are safely in the
+     * outbox, so a batch that failed and is replayed from the dead-letter topic is not dropped.
+     */
+    public void remember(Collection<String> keys) {
+        if (!enabled || keys.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiredBefore = now - TimeUnit.MINUTES.toMillis(ttlMinutes);
+        synchronized (seenAt) {
+            for (String key : keys) {
+                if (key != null) {
+                    // Re-inserting moves the key to the young end, keeping the map ordered by time
+                    seenAt.remove(key);
+                    seenAt.put(key, now);
+                }
+            }
+            Iterator<Long> eldest = seenAt.values().iterator();
+            while (eldest.hasNext() && eldest.next() < expiredBefore) {
+                eldest.remove();
+            }
+        }
+        if (persist) {
+            persist(keys, now);
+        }
+    }
+
+    private void persist(Collection<String> keys, long now) {
+        final String sql = "INSERT INTO processed_events (dedup_key, seen_at) VALUES (?, ?) " +
+                "ON CONFLICT(dedup_key) DO UPDATE SET seen_at = excluded.seen_at";
+        try {
+            pool.writeInTransaction(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    for (String key : keys) {
+                        if (key != null) {
+                            ps.setString(1, key);
+                            ps.setLong(2, now);
+                            ps.addBatch();
+                        }
+                    }
+                    return ps.executeBatch();
+                }
+            });
+            if (now - lastPurge > PURGE_INTERVAL_MS) {
+                purgeExpired(now);
+            }
+        } catch (SQLException e) {
+            // Only the restart protection is lost; the in-memory cache still has the keys
+            LOGGER.warning("Failed to persist dedup keys: " + e.getMessage());
+        }
+    }
+
+    private void purgeExpired(long now) throws SQLException {
+        lastPurge = now;
+        pool.write(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("DELETE FROM processed_events WHERE seen_at < ?")) {
+                ps.setLong(1, now - TimeUnit.MINUTES.toMillis(ttlMinutes));
+                return ps.executeUpdate();
+            }
+        });
+    }
+}
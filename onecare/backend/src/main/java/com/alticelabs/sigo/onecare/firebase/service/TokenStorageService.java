@@ -1,52 +1,190 @@
 package com.alticelabs.sigo.onecare.firebase.service;
 
+import com.alticelabs.sigo.onecare.firebase.dto.DeviceTokenRequest;
+import com.alticelabs.sigo.onecare.firebase.dto.TokenBatchResponse;
+import com.alticelabs.sigo.onecare.firebase.dto.TokenBatchResponse.TokenResult;
+import io.quarkus.runtime.Startup;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+@Startup
 @ApplicationScoped
 public class TokenStorageService {
 
     private static final Logger LOGGER = Logger.getLogger(TokenStorageService.class.getName());
 
-    private static final String DB_FILENAME = "tokens.db";
-    private static final String DB_URL_PREFIX = "jdbc:sqlite:";
-    private Connection connection;
+    // Rows per transaction of registerTokens; a failed chunk does not undo the committed ones
+    static final int REGISTER_BATCH_CHUNK_SIZE = 500;
+    public static final int MAX_REGISTER_BATCH = 10_000;
+    // A day at most, so a forgotten digest preference still delivers daily
+    public static final int MAX_DIGEST_INTERVAL_MINUTES = 1440;
+
+    private static final String REGISTER_SQL = "INSERT INTO tokens (token, user_id, saved_at) VALUES (?, ?, ?) " +
+            "ON CONFLICT(token) DO UPDATE SET user_id = excluded.user_id, saved_at = excluded.saved_at";
+    private static final String UNREGISTER_SQL = "DELETE FROM tokens WHERE token = ?";
+    private static final Map<String, String> EXPORT_COLUMNS = NdjsonExport.columns(
+            "token", "token", "user_id", "userId", "saved_at", "savedAt");
+
+    @Inject
+    SqliteConnectionPool pool;
+
+    @Inject
+    NotificationMetrics metrics;
+
+    @Inject
+    TeamTopicService teamTopics;
+
+    // Group commit: single-token registers/unregisters queued while a transaction commits share the
+    // next one (one commit, one fsync with synchronous=FULL) instead of one auto-commit each
+    @ConfigProperty(name = "tokens.group-commit.enabled", defaultValue = "true")
+    boolean groupCommitEnabled;
+
+    @ConfigProperty(name = "tokens.group-commit.window-ms", defaultValue = "0")
+    long groupCommitWindowMs;
+
+    @ConfigProperty(name = "tokens.group-commit.max-batch", defaultValue = "256")
+    int groupCommitMaxBatch;
+
+    // Write-through index of the tokens table so that lookups never hit SQLite.
+    // Mutations update it under indexLock once their statement has committed, in commit order
+    // (see writeAndIndex); the lock is never held across SQLite I/O and reads are lock-free.
+    private final Map<String, Set<String>> tokensByUser = new ConcurrentHashMap<>();
+    private final Map<String, String> userByToken = new ConcurrentHashMap<>();
+    private final Object indexLock = new Object();
+    // Numbers the index-changing writes on the pool's writer connection (guarded by its lock)
+    private long nextWriteSequence;
+    // Sequence of the next write whose index update may be applied (guarded by indexLock)
+    private long appliedWriteSequence;
+
+    // Users in digest mode and their interval in minutes (user_preferences), same write-through scheme
+    private final Map<String, Integer> digestIntervalByUser = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+    private Thread groupCommitter;
+    private volatile boolean stopping;
 
     @PostConstruct
     void init() {
         try {
-            Path dbPath = Path.of(DB_FILENAME).toAbsolutePath();
-            if (dbPath.getParent() != null && !Files.exists(dbPath.getParent())) {
-                Files.createDirectories(dbPath.getParent());
-            }
-            Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection(DB_URL_PREFIX + dbPath);
             createTablesIfNeeded();
-            LOGGER.info("TokenStorageService initialized with SQLite at " + dbPath);
+            loadIndex();
+            metrics.registerTokenGauges(userByToken::size, tokensByUser::size);
+            if (groupCommitEnabled) {
+                groupCommitter = Thread.ofPlatform().name("token-group-commit").daemon()
+                        .start(this::runGroupCommits);
+            }
+            LOGGER.info("TokenStorageService initialized (" + userByToken.size() + " tokens loaded)");
         } catch (Exception e) {
             LOGGER.severe("Failed to initialize SQLite token storage: " + e.getMessage());
             throw new IllegalStateException("Cannot initialize token storage", e);
         }
     }
 
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        if (groupCommitter == null) {
+            return;
+        }
+        stopping = true;
+        groupCommitter.interrupt();
+        groupCommitter.join(TimeUnit.SECONDS.toMillis(5));
+        // Writes queued while the committer was stopping
+        List<PendingWrite> remaining = new ArrayList<>();
+        pendingWrites.drainTo(remaining);
+        commitGroup(remaining);
+    }
+
     private void createTablesIfNeeded() throws SQLException {
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS tokens (
-                  token TEXT PRIMARY KEY,
-                  user_id TEXT NOT NULL,
-                  saved_at INTEGER NOT NULL
-                )
-                """);
+        pool.write(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS tokens (
+                      token TEXT PRIMARY KEY,
+                      user_id TEXT NOT NULL,
+                      saved_at INTEGER NOT NULL
+                    )
+                    """);
+                // Covering index for user -> tokens, used by the user_teams join
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_tokens_user ON tokens(user_id, token)");
+                stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS user_preferences (
+                      user_id TEXT PRIMARY KEY,
+                      digest_interval_minutes INTEGER NOT NULL,
+                      saved_at INTEGER NOT NULL
+                    )
+                    """);
+            }
+            return null;
+        });
+    }
+
+    private void loadIndex() throws SQLException {
+        synchronized (indexLock) {
+            tokensByUser.clear();
+            userByToken.clear();
+            digestIntervalByUser.clear();
+            pool.read(connection -> {
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT token, user_id FROM tokens")) {
+                    while (rs.next()) {
+                        indexToken(rs.getString("user_id"), rs.getString("token"));
+                    }
+                }
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT user_id, digest_interval_minutes FROM user_preferences")) {
+                    while (rs.next()) {
+                        digestIntervalByUser.put(rs.getString(1), rs.getInt(2));
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    private void indexToken(String userId, String deviceToken) {
+        String previousUser = userByToken.put(deviceToken, userId);
+        if (previousUser != null && !previousUser.equals(userId)) {
+            removeFromUser(previousUser, deviceToken);
         }
+        tokensByUser.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(deviceToken);
+    }
+
+    private void unindexToken(String deviceToken) {
+        String userId = userByToken.remove(deviceToken);
+        if (userId != null) {
+            removeFromUser(userId, deviceToken);
+        }
+    }
+
+    private void removeFromUser(String userId, String deviceToken) {
+        tokensByUser.computeIfPresent(userId, (k, tokens) -> {
+            tokens.remove(deviceToken);
+            return tokens.isEmpty() ? null : tokens;
+        });
     }
 
     /**
@@ -60,19 +198,90 @@ public class TokenStorageService {
             throw new IllegalArgumentException("deviceToken cannot be null or empty");
         }
 
-        final String sql = "INSERT INTO tokens (token, user_id, saved_at) VALUES (?, ?, ?) " +
-                "ON CONFLICT(token) DO UPDATE SET user_id = excluded.user_id, saved_at = excluded.saved_at";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, deviceToken);
-            ps.setString(2, userId);
-            ps.setLong(3, System.currentTimeMillis());
-            ps.executeUpdate();
-            LOGGER.info(String.format("Registered token for user %s", userId));
+        try {
+            write(new PendingWrite(userId, deviceToken));
         } catch (SQLException e) {
             throw new IllegalArgumentException("Failed to persist token: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Registers many (userId, deviceToken) pairs with chunked JDBC batches, one transaction per
+     * {@link #REGISTER_BATCH_CHUNK_SIZE} pairs. Invalid items are reported and skipped; when a
+     * token appears more than once its last pair wins. If a chunk fails, its items are reported
+     * failed and the remaining chunks are still written.
+     * @return one result per request item, in request order
+     */
+    public TokenBatchResponse registerTokens(List<DeviceTokenRequest> requests) {
+        if (requests == null || requests.isEmpty()) {
+            throw new IllegalArgumentException("tokens list cannot be empty");
+        }
+        if (requests.size() > MAX_REGISTER_BATCH) {
+            throw new IllegalArgumentException("At most " + MAX_REGISTER_BATCH + " tokens per batch");
+        }
+
+        TokenResult[] results = new TokenResult[requests.size()];
+        // Last occurrence of every token; earlier ones are superseded
+        Map<String, Integer> lastIndexByToken = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            DeviceTokenRequest request = requests.get(i);
+            String userId = request == null ? null : request.getUserId();
+            String deviceToken = request == null ? null : request.getDeviceToken();
+            if (userId == null || userId.isEmpty() || deviceToken == null || deviceToken.isEmpty()) {
+                results[i] = new TokenResult(userId, deviceToken, false, TokenResult.INVALID,
+                        "userId and deviceToken are required");
+                continue;
+            }
+            Integer previous = lastIndexByToken.put(deviceToken, i);
+            if (previous != null) {
+                results[previous] = new TokenResult(requests.get(previous).getUserId(), deviceToken, false,
+                        TokenResult.DUPLICATE, "deviceToken appears again later in the batch");
+            }
+        }
+        List<Integer> accepted = new ArrayList<>(lastIndexByToken.values());
+        Collections.sort(accepted);
+
+        int registered = 0;
+        for (int from = 0; from < accepted.size(); from += REGISTER_BATCH_CHUNK_SIZE) {
+            List<Integer> chunk = accepted.subList(from, Math.min(from + REGISTER_BATCH_CHUNK_SIZE, accepted.size()));
+            try {
+                long timestamp = System.currentTimeMillis();
+                writeAndIndex(true, connection -> {
+                    try (PreparedStatement ps = connection.prepareStatement(REGISTER_SQL)) {
+                        for (int i : chunk) {
+                            ps.setString(1, requests.get(i).getDeviceToken());
+                            ps.setString(2, requests.get(i).getUserId());
+                            ps.setLong(3, timestamp);
+                            ps.addBatch();
+                        }
+                        return ps.executeBatch();
+                    }
+                }, counts -> {
+                    for (int i : chunk) {
+                        String userId = requests.get(i).getUserId();
+                        String deviceToken = requests.get(i).getDeviceToken();
+                        String previousUserId = userByToken.get(deviceToken);
+                        indexToken(userId, deviceToken);
+                        teamTopics.tokenRegistered(userId, deviceToken, previousUserId);
+                        boolean reassigned = previousUserId != null && !previousUserId.equals(userId);
+                        results[i] = new TokenResult(userId, deviceToken, true,
+                                reassigned ? TokenResult.REASSIGNED : TokenResult.REGISTERED, null);
+                    }
+                });
+                registered += chunk.size();
+            } catch (SQLException e) {
+                LOGGER.severe(String.format("Failed to register %d tokens: %s", chunk.size(), e.getMessage()));
+                for (int i : chunk) {
+                    results[i] = new TokenResult(requests.get(i).getUserId(), requests.get(i).getDeviceToken(),
+                            false, TokenResult.FAILED, "Failed to persist token: " + e.getMessage());
+                }
+            }
+        }
+
+        LOGGER.info(String.format("Registered %d of %d tokens in batch", registered, requests.size()));
+        return new TokenBatchResponse(registered, requests.size() - registered, List.of(results));
+    }
+
     /**
      * Unregister a device token
      */
@@ -81,18 +290,319 @@ public class TokenStorageService {
             return false;
         }
 
-        final String sql = "DELETE FROM tokens WHERE token = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, deviceToken);
-            int rows = ps.executeUpdate();
-            LOGGER.info("Unregistered token: " + deviceToken);
-            return rows > 0;
+        try {
+            return write(new PendingWrite(null, deviceToken)) > 0;
         } catch (SQLException e) {
             LOGGER.severe("Failed to unregister token: " + e.getMessage());
             return false;
         }
     }
 
+    /**
+     * A single-token register (userId set) or unregister (userId null) and its caller's result,
+     * the number of rows changed
+     */
+    private record PendingWrite(String userId, String deviceToken, CompletableFuture<Integer> done) {
+
+        PendingWrite(String userId, String deviceToken) {
+            this(userId, deviceToken, new CompletableFuture<>());
+        }
+
+        boolean isRegister() {
+            return userId != null;
+        }
+    }
+
+    /**
+     * Applies a single-token write. With group commit on, the write is handed to the committer
+     * thread and this returns once the transaction holding it has committed; otherwise it is an
+     * auto-commit statement on the calling thread.
+     */
+    private int write(PendingWrite write) throws SQLException {
+        if (groupCommitter == null || stopping) {
+            return writeAndIndex(false, connection -> execute(connection, write, System.currentTimeMillis()),
+                    rows -> index(write, rows));
+        }
+        pendingWrites.add(write);
+        // shutdown sets stopping before its final drain: when the write got in after that drain,
+        // nothing would ever commit it. remove() decides who does: a drained write is not removed.
+        if (stopping && pendingWrites.remove(write)) {
+            commitGroup(List.of(write));
+        }
+        try {
+            return write.done().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw e;
+        }
+    }
+
+    private int execute(Connection connection, PendingWrite write, long timestamp) throws SQLException {
+        if (write.isRegister()) {
+            try (PreparedStatement ps = connection.prepareStatement(REGISTER_SQL)) {
+                ps.setString(1, write.deviceToken());
+                ps.setString(2, write.userId());
+                ps.setLong(3, timestamp);
+                return ps.executeUpdate();
+            }
+        }
+        try (PreparedStatement ps = connection.prepareStatement(UNREGISTER_SQL)) {
+            ps.setString(1, write.deviceToken());
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Mirrors a committed write in the index and the team topics. Called with indexLock held.
+     */
+    private void index(PendingWrite write, int rows) {
+        String previousUserId = userByToken.get(write.deviceToken());
+        if (write.isRegister()) {
+            indexToken(write.userId(), write.deviceToken());
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Registered token for user " + write.userId());
+            }
+            teamTopics.tokenRegistered(write.userId(), write.deviceToken(), previousUserId);
+        } else {
+            unindexToken(write.deviceToken());
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Unregistered token: " + redact(write.deviceToken()));
+            }
+            if (rows > 0) {
+                teamTopics.tokenUnregistered(previousUserId, write.deviceToken());
+            }
+        }
+    }
+
+    /**
+     * Committer thread: takes the first pending write plus everything queued behind it, waiting
+     * up to groupCommitWindowMs for more (up to groupCommitMaxBatch), and commits them together
+     */
+    private void runGroupCommits() {
+        List<PendingWrite> group = new ArrayList<>();
+        while (!stopping) {
+            try {
+                group.add(pendingWrites.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitWindowMs);
+                while (group.size() < groupCommitMaxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0
+                            ? pendingWrites.poll(remaining, TimeUnit.NANOSECONDS)
+                            : pendingWrites.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutting down; whatever was gathered is still committed below
+            }
+            commitGroup(group);
+            group.clear();
+        }
+    }
+
+    private void commitGroup(List<PendingWrite> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        int[] rows = new int[group.size()];
+        long timestamp = System.currentTimeMillis();
+        try {
+            writeAndIndex(true, connection -> {
+                for (int i = 0; i < group.size(); i++) {
+                    rows[i] = execute(connection, group.get(i), timestamp);
+                }
+                return null;
+            }, ignored -> indexGroup(group, rows));
+        } catch (SQLException e) {
+            // Retry one by one so that a single bad write does not fail its whole group
+            LOGGER.warning(String.format("Group commit of %d token writes failed (%s), applying them one by one",
+                    group.size(), e.getMessage()));
+            for (PendingWrite write : group) {
+                try {
+                    writeAndIndex(false, connection -> execute(connection, write, timestamp),
+                            writeRows -> indexGroup(List.of(write), new int[] {writeRows}));
+                } catch (SQLException writeError) {
+                    write.done().completeExceptionally(writeError);
+                }
+            }
+        }
+        metrics.tokenWriteGroup(group.size());
+    }
+
+    /**
+     * Mirrors committed writes in the index and releases their callers. Called with indexLock held.
+     */
+    private void indexGroup(List<PendingWrite> group, int[] rows) {
+        for (int i = 0; i < group.size(); i++) {
+            PendingWrite write = group.get(i);
+            try {
+                index(write, rows[i]);
+                write.done().complete(rows[i]);
+            } catch (RuntimeException e) {
+                write.done().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Runs a write on the pool's writer connection, then mirrors it in the index with indexUpdate,
+     * holding indexLock for that in-memory change only. Writes are numbered on the writer connection,
+     * so in commit order, and their index updates are applied in that same order: two writes of the
+     * same token can never leave the index disagreeing with the table.
+     */
+    private <T> T writeAndIndex(boolean transaction, SqliteConnectionPool.SqlWork<T> work, Consumer<T> indexUpdate)
+            throws SQLException {
+        long[] sequence = {-1};
+        SqliteConnectionPool.SqlWork<T> numbered = connection -> {
+            T result = work.execute(connection);
+            sequence[0] = nextWriteSequence++;
+            return result;
+        };
+        T result = null;
+        boolean committed = false;
+        try {
+            result = transaction ? pool.writeInTransaction(numbered) : pool.write(numbered);
+            committed = true;
+            return result;
+        } finally {
+            // A numbered write that did not commit (failed commit) still takes its turn, or every later one would wait
+            if (sequence[0] >= 0) {
+                T written = result;
+                applyInOrder(sequence[0], committed ? () -> indexUpdate.accept(written) : null);
+            }
+        }
+    }
+
+    private void applyInOrder(long sequence, Runnable indexUpdate) {
+        boolean interrupted = false;
+        synchronized (indexLock) {
+            // Only waits for writes that committed just before this one and are applying their own update
+            while (appliedWriteSequence != sequence) {
+                try {
+                    indexLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                if (indexUpdate != null) {
+                    indexUpdate.run();
+                }
+            } finally {
+                appliedWriteSequence++;
+                indexLock.notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Unregister several device tokens in one transaction (one commit for the whole set).
+     * Used to prune tokens FCM reported as invalid, which FCM also drops from their topics, so no
+     * team topic unsubscribe is queued.
+     * @return number of tokens that were actually removed
+     */
+    public int unregisterTokens(Collection<String> deviceTokens) {
+        if (deviceTokens == null || deviceTokens.isEmpty()) {
+            return 0;
+        }
+
+        Set<String> unique = new LinkedHashSet<>(deviceTokens);
+        unique.removeIf(token -> token == null || token.isEmpty());
+        if (unique.isEmpty()) {
+            return 0;
+        }
+        try {
+            int[] counts = writeAndIndex(true, connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(UNREGISTER_SQL)) {
+                    for (String token : unique) {
+                        ps.setString(1, token);
+                        ps.addBatch();
+                    }
+                    return ps.executeBatch();
+                }
+            }, ignored -> unique.forEach(this::unindexToken));
+            int removed = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    removed++;
+                }
+            }
+            LOGGER.info(String.format("Unregistered %d of %d tokens", removed, unique.size()));
+            return removed;
+        } catch (SQLException e) {
+            LOGGER.severe("Failed to unregister tokens: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Puts a user in digest mode: their ticket notifications are buffered and sent as one summary
+     * every intervalMinutes. A null interval turns digest mode off.
+     */
+    public void setDigestInterval(String userId, Integer intervalMinutes) {
+        if (userId == null || userId.isEmpty()) {
+            throw new IllegalArgumentException("userId cannot be null or empty");
+        }
+        if (intervalMinutes != null && (intervalMinutes <= 0 || intervalMinutes > MAX_DIGEST_INTERVAL_MINUTES)) {
+            throw new IllegalArgumentException("intervalMinutes must be between 1 and " + MAX_DIGEST_INTERVAL_MINUTES);
+        }
+
+        final String upsert = "INSERT INTO user_preferences (user_id, digest_interval_minutes, saved_at) VALUES (?, ?, ?) " +
+                "ON CONFLICT(user_id) DO UPDATE SET digest_interval_minutes = excluded.digest_interval_minutes, " +
+                "saved_at = excluded.saved_at";
+        final String delete = "DELETE FROM user_preferences WHERE user_id = ?";
+        try {
+            writeAndIndex(false, connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(intervalMinutes != null ? upsert : delete)) {
+                    ps.setString(1, userId);
+                    if (intervalMinutes != null) {
+                        ps.setInt(2, intervalMinutes);
+                        ps.setLong(3, System.currentTimeMillis());
+                    }
+                    return ps.executeUpdate();
+                }
+            }, ignored -> {
+                if (intervalMinutes != null) {
+                    digestIntervalByUser.put(userId, intervalMinutes);
+                } else {
+                    digestIntervalByUser.remove(userId);
+                }
+            });
+            LOGGER.info(String.format("Digest mode for user %s: %s", userId,
+                    intervalMinutes != null ? "every " + intervalMinutes + " min" : "off"));
+        } catch (SQLException e) {
+            throw new IllegalArgumentException("Failed to persist digest preference: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Digest interval of a user in minutes, or null when they get every notification as it happens
+     */
+    public Integer getDigestInterval(String userId) {
+        return userId == null ? null : digestIntervalByUser.get(userId);
+    }
+
+    public boolean hasDigestUsers() {
+        return !digestIntervalByUser.isEmpty();
+    }
+
+    /**
+     * Shortened form of a device token for log lines: tokens are credentials for pushing to a device
+     */
+    public static String redact(String deviceToken) {
+        if (deviceToken == null || deviceToken.length() <= 12) {
+            return "***";
+        }
+        return deviceToken.substring(0, 8) + "..." + deviceToken.substring(deviceToken.length() - 4);
+    }
+
     /**
      * Get all tokens for a specific user
      */
@@ -101,54 +611,58 @@ public class TokenStorageService {
             return Collections.emptyList();
         }
 
-        final String sql = "SELECT token FROM tokens WHERE user_id = ?";
-        List<String> result = new ArrayList<>();
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    result.add(rs.getString("token"));
+        Set<String> tokens = tokensByUser.get(userId);
+        return tokens == null ? new ArrayList<>() : new ArrayList<>(tokens);
+    }
+
+    /**
+     * One page of a user's tokens in token order, read from the (user_id, token) index
+     */
+    public KeysetPage getTokensForUserPage(String userId, String cursor, int limit) throws SQLException {
+        KeysetPage.checkLimit(limit);
+        String after = KeysetPage.decodeCursor(cursor);
+        final String sql = "SELECT token FROM tokens WHERE user_id = ? AND token > ? ORDER BY token LIMIT ?";
+        List<String> rows = new ArrayList<>(limit + 1);
+        pool.read(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setString(1, userId);
+                ps.setString(2, after);
+                ps.setInt(3, limit + 1);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(rs.getString(1));
+                    }
                 }
             }
-        } catch (SQLException e) {
-            LOGGER.severe("Failed to fetch tokens for user " + userId + ": " + e.getMessage());
-        }
-        return result;
+            return null;
+        });
+        return KeysetPage.of(rows, limit);
+    }
+
+    /**
+     * Writes every row of the tokens table to out as NDJSON, one {"token","userId","savedAt"}
+     * object per line (see {@link NdjsonExport})
+     * @return number of rows written
+     */
+    public long exportTokens(OutputStream out) throws IOException {
+        return NdjsonExport.export(pool, out, "tokens", EXPORT_COLUMNS);
     }
 
     /**
      * Get userId for a specific token
      */
     public String getUserIdForToken(String deviceToken) {
-        final String sql = "SELECT user_id FROM tokens WHERE token = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, deviceToken);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("user_id");
-                }
-            }
-        } catch (SQLException e) {
-            LOGGER.severe("Failed to fetch user for token: " + e.getMessage());
+        if (deviceToken == null) {
+            return null;
         }
-        return null;
+        return userByToken.get(deviceToken);
     }
 
     /**
      * Get all registered tokens (for broadcast scenarios)
      */
     public List<String> getAllTokens() {
-        final String sql = "SELECT token FROM tokens";
-        List<String> result = new ArrayList<>();
-        try (PreparedStatement ps = connection.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                result.add(rs.getString("token"));
-            }
-        } catch (SQLException e) {
-            LOGGER.severe("Failed to fetch all tokens: " + e.getMessage());
-        }
-        return result;
+        return new ArrayList<>(userByToken.keySet());
     }
 
     /**
@@ -159,59 +673,53 @@ public class TokenStorageService {
             return getAllTokens();
         }
 
-        final String sql = "SELECT token FROM tokens WHERE user_id != ?";
-        List<String> result = new ArrayList<>();
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, excludeUserId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    result.add(rs.getString("token"));
-                }
+        List<String> result = new ArrayList<>(userByToken.size());
+        for (Map.Entry<String, Set<String>> entry : tokensByUser.entrySet()) {
+            if (!excludeUserId.equals(entry.getKey())) {
+                result.addAll(entry.getValue());
             }
-        } catch (SQLException e) {
-            LOGGER.severe("Failed to fetch tokens excluding user " + excludeUserId + ": " + e.getMessage());
         }
         return result;
     }
 
+    /**
+     * Get a point-in-time copy of every user's tokens (for resolving many audiences at once)
+     */
+    public Map<String, List<String>> getTokensByUserSnapshot() {
+        Map<String, List<String>> snapshot = new HashMap<>(tokensByUser.size());
+        for (Map.Entry<String, Set<String>> entry : tokensByUser.entrySet()) {
+            snapshot.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return snapshot;
+    }
+
     /**
      * Get total number of registered users
      */
     public int getUserCount() {
-        final String sql = "SELECT COUNT(DISTINCT user_id) AS cnt FROM tokens";
-        try (PreparedStatement ps = connection.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            if (rs.next()) {
-                return rs.getInt("cnt");
-            }
-        } catch (SQLException e) {
-            LOGGER.severe("Failed to count users: " + e.getMessage());
-        }
-        return 0;
+        return tokensByUser.size();
     }
 
     /**
      * Get total number of registered tokens
      */
     public int getTokenCount() {
-        final String sql = "SELECT COUNT(*) AS cnt FROM tokens";
-        try (PreparedStatement ps = connection.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            if (rs.next()) {
-                return rs.getInt("cnt");
-            }
-        } catch (SQLException e) {
-            LOGGER.severe("Failed to count tokens: " + e.getMessage());
-        }
-        return 0;
+        return userByToken.size();
     }
 
     /**
      * Clear all tokens (for testing/admin purposes)
      */
     public void clearAll() {
-        try (Statement stmt = connection.createStatement()) {
-            stmt.executeUpdate("DELETE FROM tokens");
+        try {
+            writeAndIndex(false, connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    return stmt.executeUpdate("DELETE FROM tokens");
+                }
+            }, ignored -> {
+                tokensByUser.clear();
+                userByToken.clear();
+            });
             LOGGER.info("Cleared all device tokens from storage");
         } catch (SQLException e) {
             LOGGER.severe("Failed to clear tokens: " + e.getMessage());
@@ -0,0 +1,250 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Classifies a TTK event in a single walk of its changes array.
+ * The first relevant change (creation, status/impact/severity field change, note or attachment)
+ * decides the body key; when no change is relevant, recently added notes or attachments are used
+ * as a fallback. The result is computed once per event and shared by every later stage.
+ */
+public final class TtkChangeClassifier {
+
+    private static final Logger LOGGER = Logger.getLogger(TtkChangeClassifier.class.getName());
+
+    private static final long RECENT_UPDATE_SECONDS = 5;
+
+    // Most important first: the body shown when several changes are merged into one push
+    private static final List<String> BODY_KEY_PRIORITY = List.of(
+            "body_ticket_created",
+            "body_status_changed",
+            "body_severity_changed",
+            "body_impact_changed",
+            "body_note_added",
+            "body_attachment_added",
+            "body_attachment_removed");
+    private static final String UPDATED_TITLE_KEY = "ticket_updated_title";
+
+    private final ObjectMapper objectMapper;
+
+    public TtkChangeClassifier(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Immutable classification of one event. changes is the serialized changes array sent to clients.
+     */
+    public record TtkChangeSummary(boolean relevant, String titleKey, String bodyKey, String changes) {
+
+        static final TtkChangeSummary NOT_RELEVANT = new TtkChangeSummary(false, null, null, null);
+    }
+
+    public TtkChangeSummary classify(JsonNode root, String eventType) {
+        JsonNode changes = resolveChanges(root);
+        String bodyKey = null;
+        if (changes != null) {
+            for (JsonNode change : changes) {
+                bodyKey = bodyKeyFor(change);
+                if (bodyKey != null) {
+                    break;
+                }
+            }
+        }
+
+        if (bodyKey == null) {
+            bodyKey = recentActivityBodyKey(root.path("data").path("value"));
+            if (bodyKey == null) {
+                return TtkChangeSummary.NOT_RELEVANT;
+            }
+        }
+
+        return new TtkChangeSummary(true, resolveTitleKey(eventType), bodyKey, serialize(changes));
+    }
+
+    private String bodyKeyFor(JsonNode change) {
+        String type = change.path("type").asText("");
+        if ("Create".equalsIgnoreCase(type) || "Created".equalsIgnoreCase(type)) {
+            return "body_ticket_created";
+        }
+        if ("FieldChange".equalsIgnoreCase(type)) {
+            String fieldName = change.path("fieldName").asText("");
+            if ("status".equalsIgnoreCase(fieldName)) {
+                return "body_status_changed";
+            }
+            if ("impact".equalsIgnoreCase(fieldName)) {
+                return "body_impact_changed";
+            }
+            if ("severity".equalsIgnoreCase(fieldName)) {
+                return "body_severity_changed";
+            }
+            return null;
+        }
+        if ("Note".equalsIgnoreCase(type)) {
+            return "body_note_added";
+        }
+        if ("Attachment".equalsIgnoreCase(type)) {
+            String action = change.path("action").asText("");
+            if ("REMOVE".equalsIgnoreCase(action)) {
+                return "body_attachment_removed";
+            }
+            return "body_attachment_added";
+        }
+        return null;
+    }
+
+    /**
+     * The more important of two body keys; the earlier one on a tie or when neither is known
+     */
+    static String higherPriorityBodyKey(String earlier, String later) {
+        int earlierRank = BODY_KEY_PRIORITY.indexOf(earlier);
+        int laterRank = BODY_KEY_PRIORITY.indexOf(later);
+        if (laterRank >= 0 && (earlierRank < 0 || laterRank < earlierRank)) {
+            return later;
+        }
+        return earlier;
+    }
+
+    /**
+     * Title of merged changes: the latest one, unless it is the generic "updated" title and an
+     * earlier change had a specific one (created, resolved, ...)
+     */
+    static String mergedTitleKey(String earlier, String later) {
+        return UPDATED_TITLE_KEY.equals(later) && earlier != null ? earlier : later;
+    }
+
+    static String resolveTitleKey(String eventType) {
+        if (eventType == null) {
+            return UPDATED_TITLE_KEY;
+        }
+        String normalized = eventType.toLowerCase(Locale.ROOT);
+        if (normalized.contains("create")) {
+            return "ticket_created_title";
+        }
+        if (normalized.contains("resolve")) {
+            return "ticket_resolved_title";
+        }
+        if (normalized.contains("close")) {
+            return "ticket_closed_title";
+        }
+        if (normalized.contains("cancel")) {
+            return "ticket_cancelled_title";
+        }
+        if (normalized.contains("reopen")) {
+            return "ticket_reopened_title";
+        }
+        return UPDATED_TITLE_KEY;
+    }
+
+    private JsonNode resolveChanges(JsonNode root) {
+        JsonNode changes = root.path("changes");
+        if (changes.isArray() && !changes.isEmpty()) {
+            return changes;
+        }
+        JsonNode dataChanges = root.path("data").path("changes");
+        if (dataChanges.isArray()) {
+            return dataChanges;
+        }
+        return null;
+    }
+
+    private String serialize(JsonNode changes) {
+        if (changes == null) {
+            return "[]";
+        }
+        try {
+            return objectMapper.writeValueAsString(changes);
+        } catch (Exception e) {
+            LOGGER.warning("Failed to serialize changes node: " + e.getMessage());
+            return "[]";
+        }
+    }
+
+    /**
+     * Fallback for events without a relevant change entry: a note or attachment created within a
+     * few seconds of lastUpdate counts as a new note/attachment. lastUpdate is parsed once.
+     */
+    private String recentActivityBodyKey(JsonNode dataNode) {
+        if (dataNode.isMissingNode()) {
+            return null;
+        }
+        Instant lastUpdate = parseInstant(dataNode.path("lastUpdate").asText(""));
+        if (lastUpdate == null) {
+            return null;
+        }
+        if (isRecent(lastUpdate, dataNode.path("notes"))) {
+            return "body_note_added";
+        }
+        if (isRecent(lastUpdate, dataNode.path("attachments"))) {
+            return "body_attachment_added";
+        }
+        return null;
+    }
+
+    private boolean isRecent(Instant lastUpdate, JsonNode items) {
+        if (!items.isArray() || items.isEmpty()) {
+            return false;
+        }
+        Instant latest = latestCreationDate(items);
+        return latest != null
+                && Math.abs(Duration.between(lastUpdate, latest).getSeconds()) <= RECENT_UPDATE_SECONDS;
+    }
+
+    /**
+     * Finds the newest creationDate. Canonical UTC timestamps of equal length ("...Z") order the same
+     * way as their instants, so they are compared as strings and only the winner is parsed; anything
+     * else falls back to parsing every value.
+     */
+    private Instant latestCreationDate(JsonNode items) {
+        String latestText = null;
+        for (JsonNode item : items) {
+            String createdAt = item.path("creationDate").asText("");
+            if (createdAt.isEmpty()) {
+                continue;
+            }
+            if (!isCanonicalUtc(createdAt) || (latestText != null && latestText.length() != createdAt.length())) {
+                return latestCreationDateParsed(items);
+            }
+            if (latestText == null || createdAt.compareTo(latestText) > 0) {
+                latestText = createdAt;
+            }
+        }
+        if (latestText == null) {
+            return null;
+        }
+        Instant latest = parseInstant(latestText);
+        return latest != null ? latest : latestCreationDateParsed(items);
+    }
+
+    private Instant latestCreationDateParsed(JsonNode items) {
+        Instant latest = null;
+        for (JsonNode item : items) {
+            Instant createdInstant = parseInstant(item.path("creationDate").asText(""));
+            if (createdInstant != null && (latest == null || createdInstant.isAfter(latest))) {
+                latest = createdInstant;
+            }
+        }
+        return latest;
+    }
+
+    private static boolean isCanonicalUtc(String value) {
+        return value.length() >= 20 && value.charAt(10) == 'T' && value.charAt(value.length() - 1) == 'Z';
+    }
+
+    private static Instant parseInstant(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Instant.parse(value);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Streaming pre-filter for sigo-ttk payloads.
+ * Reads only header.schema, header.eventType and data.value.origin with a {@link JsonParser},
+ * skipping every other subtree, so records that are going to be dropped never get a JsonNode tree.
+ * Parsing stops as soon as the verdict is known (non-TTK schema, or both header and origin seen).
+ */
+public final class TtkEventPrefilter {
+
+    private static final String TTK_SCHEMA = "TTK";
+    private static final String ONECARE_ORIGIN = "Onecare";
+
+    private final JsonFactory jsonFactory;
+
+    public TtkEventPrefilter(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    public record Header(String schema, String eventType, String origin) {
+
+        public boolean isTtk() {
+            return TTK_SCHEMA.equalsIgnoreCase(schema);
+        }
+
+        public boolean isOnecare() {
+            return ONECARE_ORIGIN.equalsIgnoreCase(origin);
+        }
+    }
+
+    public Header scan(String payload) throws IOException {
+        String schema = null;
+        String eventType = null;
+        String origin = null;
+        boolean headerSeen = false;
+        boolean dataSeen = false;
+
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return new Header(null, null, null);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("header".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String headerField = parser.currentName();
+                        parser.nextToken();
+                        if ("schema".equals(headerField)) {
+                            schema = scalarText(parser);
+                        } else if ("eventType".equals(headerField)) {
+                            eventType = scalarText(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    headerSeen = true;
+                    if (!TTK_SCHEMA.equalsIgnoreCase(schema)) {
+                        break;
+                    }
+                } else if ("data".equals(field) && value == JsonToken.START_OBJECT) {
+                    origin = scanOrigin(parser, headerSeen);
+                    dataSeen = true;
+                } else {
+                    parser.skipChildren();
+                }
+                if (headerSeen && dataSeen) {
+                    break;
+                }
+            }
+        }
+        return new Header(schema, eventType, origin);
+    }
+
+    /**
+     * Reads data.value.origin. When the header has already been read the parser is abandoned as soon
+     * as origin is found; otherwise the rest of the data object is skipped so scanning can continue.
+     */
+    private String scanOrigin(JsonParser parser, boolean stopWhenFound) throws IOException {
+        String origin = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String dataField = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (origin == null && "value".equals(dataField) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String valueField = parser.currentName();
+                    parser.nextToken();
+                    if (origin == null && "origin".equals(valueField)) {
+                        origin = scalarText(parser);
+                        if (stopWhenFound) {
+                            return origin;
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return origin;
+    }
+
+    private String scalarText(JsonParser parser) throws IOException {
+        if (parser.currentToken().isScalarValue()) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return "";
+    }
+}
@@ -2,13 +2,19 @@ package com.alticelabs.sigo.onecare.firebase.service;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -17,21 +23,20 @@ public class UserTeamService {
 
     private static final Logger LOGGER = Logger.getLogger(UserTeamService.class.getName());
 
-    private static final String DB_FILENAME = "tokens.db"; // Reuse same database
-    private static final String DB_URL_PREFIX = "jdbc:sqlite:";
-    private Connection connection;
+    // Team ids bound per IN (...) list; well below SQLite's host parameter limit
+    private static final int IN_LIST_CHUNK_SIZE = 500;
+
+    @Inject
+    SqliteConnectionPool pool; // Shares tokens.db with TokenStorageService
+
+    @Inject
+    TeamTopicService teamTopics;
 
     @PostConstruct
     void init() {
         try {
-            Path dbPath = Path.of(DB_FILENAME).toAbsolutePath();
-            if (dbPath.getParent() != null && !Files.exists(dbPath.getParent())) {
-                Files.createDirectories(dbPath.getParent());
-            }
-            Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection(DB_URL_PREFIX + dbPath);
             createTablesIfNeeded();
-            LOGGER.info("UserTeamService initialized with SQLite at " + dbPath);
+            LOGGER.info("UserTeamService initialized");
         } catch (Exception e) {
             LOGGER.severe("Failed to initialize SQLite user-team storage: " + e.getMessage());
             throw new IllegalStateException("Cannot initialize user-team storage", e);
@@ -39,22 +44,26 @@ public class UserTeamService {
     }
 
     private void createTablesIfNeeded() throws SQLException {
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS user_teams (
-                  user_id TEXT NOT NULL,
-                  team_id TEXT NOT NULL,
-                  added_at INTEGER NOT NULL,
-                  PRIMARY KEY (user_id, team_id)
-                )
-                """);
-
-            // Create indexes for efficient lookups
-            stmt.execute("CREATE INDEX IF NOT EXISTS idx_user_teams_user ON user_teams(user_id)");
-            stmt.execute("CREATE INDEX IF NOT EXISTS idx_user_teams_team ON user_teams(team_id)");
-
-            LOGGER.info("User-team tables created/verified successfully");
-        }
+        pool.write(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS user_teams (
+                      user_id TEXT NOT NULL,
+                      team_id TEXT NOT NULL,
+                      added_at INTEGER NOT NULL,
+                      PRIMARY KEY (user_id, team_id)
+                    )
+                    """);
+
+                // Create indexes for efficient lookups; (team_id, user_id) covers the team -> members
+                // lookups, which then never touch the table (it supersedes the old team_id index)
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_user_teams_user ON user_teams(user_id)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_user_teams_team_user ON user_teams(team_id, user_id)");
+                stmt.execute("DROP INDEX IF EXISTS idx_user_teams_team");
+            }
+            return null;
+        });
+        LOGGER.info("User-team tables created/verified successfully");
     }
 
     /**
@@ -70,12 +79,17 @@ public class UserTeamService {
 
         final String sql = "INSERT INTO user_teams (user_id, team_id, added_at) VALUES (?, ?, ?) " +
                 "ON CONFLICT(user_id, team_id) DO UPDATE SET added_at = excluded.added_at";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            ps.setString(2, teamId);
-            ps.setLong(3, System.currentTimeMillis());
-            ps.executeUpdate();
+        try {
+            pool.write(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, userId);
+                    ps.setString(2, teamId);
+                    ps.setLong(3, System.currentTimeMillis());
+                    return ps.executeUpdate();
+                }
+            });
             LOGGER.info(String.format("Added user %s to team %s", userId, teamId));
+            teamTopics.membersAdded(teamId, List.of(userId));
         } catch (SQLException e) {
             throw new IllegalArgumentException("Failed to add user to team: " + e.getMessage(), e);
         }
@@ -90,12 +104,17 @@ public class UserTeamService {
         }
 
         final String sql = "DELETE FROM user_teams WHERE user_id = ? AND team_id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            ps.setString(2, teamId);
-            int rows = ps.executeUpdate();
+        try {
+            int rows = pool.write(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, userId);
+                    ps.setString(2, teamId);
+                    return ps.executeUpdate();
+                }
+            });
             if (rows > 0) {
                 LOGGER.info(String.format("Removed user %s from team %s", userId, teamId));
+                teamTopics.membersRemoved(teamId, List.of(userId));
             }
             return rows > 0;
         } catch (SQLException e) {
@@ -114,13 +133,18 @@ public class UserTeamService {
 
         final String sql = "SELECT user_id FROM user_teams WHERE team_id = ?";
         List<String> result = new ArrayList<>();
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, teamId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    result.add(rs.getString("user_id"));
+        try {
+            pool.read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, teamId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            result.add(rs.getString("user_id"));
+                        }
+                    }
                 }
-            }
+                return null;
+            });
         } catch (SQLException e) {
             LOGGER.severe("Failed to fetch users for team " + teamId + ": " + e.getMessage());
         }
@@ -128,20 +152,124 @@ public class UserTeamService {
     }
 
     /**
-     * Get all users in multiple teams (union)
+     * One page of a team's members in user order, read from the (team_id, user_id) index
      */
-    public Set<String> getUsersInTeams(List<String> teamIds) {
-        if (teamIds == null || teamIds.isEmpty()) {
-            return new HashSet<>();
-        }
+    public KeysetPage getUsersInTeamPage(String teamId, String cursor, int limit) throws SQLException {
+        KeysetPage.checkLimit(limit);
+        String after = KeysetPage.decodeCursor(cursor);
+        final String sql = "SELECT user_id FROM user_teams WHERE team_id = ? AND user_id > ? ORDER BY user_id LIMIT ?";
+        List<String> rows = new ArrayList<>(limit + 1);
+        pool.read(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setString(1, teamId);
+                ps.setString(2, after);
+                ps.setInt(3, limit + 1);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(rs.getString(1));
+                    }
+                }
+            }
+            return null;
+        });
+        return KeysetPage.of(rows, limit);
+    }
 
+    /**
+     * Writes every membership to out as NDJSON, one {"userId","teamId","addedAt"} object per line
+     * (see {@link NdjsonExport})
+     * @return number of rows written
+     */
+    public long exportMemberships(OutputStream out) throws IOException {
+        return NdjsonExport.export(pool, out, "user_teams",
+                NdjsonExport.columns("user_id", "userId", "team_id", "teamId", "added_at", "addedAt"));
+    }
+
+    /**
+     * Get all users in multiple teams (union). Lookup errors are thrown rather than read as "no
+     * members", which the Kafka consumer would otherwise take for an unknown team.
+     */
+    public Set<String> getUsersInTeams(List<String> teamIds) throws SQLException {
         Set<String> allUsers = new HashSet<>();
-        for (String teamId : teamIds) {
-            allUsers.addAll(getUsersInTeam(teamId));
+        if (teamIds == null || teamIds.isEmpty()) {
+            return allUsers;
         }
+
+        forEachTeamChunk(teamIds, "SELECT user_id FROM user_teams WHERE team_id IN ",
+                "user_id", null, allUsers);
         return allUsers;
     }
 
+    /**
+     * Device tokens of every member of the given teams, resolved with a single join against the
+     * tokens table. Members of several teams are returned once; excludeUserId (the actor) may be null.
+     */
+    public List<String> getTokensForTeams(Collection<String> teamIds, String excludeUserId) throws SQLException {
+        if (teamIds == null || teamIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Set<String> tokens = new LinkedHashSet<>();
+        forEachTeamChunk(teamIds,
+                "SELECT t.token FROM user_teams ut JOIN tokens t ON t.user_id = ut.user_id " +
+                        "WHERE ut.team_id IN ",
+                "ut.user_id", excludeUserId, tokens);
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Runs selectPrefix + "(?, ...)" once per chunk of distinct team ids on a single reader
+     * connection, adding the first column of every row to result. When excludeUserId is set the
+     * statement also gets "AND userColumn <> ?". Statements are prepared once per chunk size.
+     */
+    private void forEachTeamChunk(
+            Collection<String> teamIds,
+            String selectPrefix,
+            String userColumn,
+            String excludeUserId,
+            Set<String> result
+    ) throws SQLException {
+        List<String> teams = new ArrayList<>(new LinkedHashSet<>(teamIds));
+        teams.removeIf(teamId -> teamId == null || teamId.isEmpty());
+        if (teams.isEmpty()) {
+            return;
+        }
+        boolean excludeUser = excludeUserId != null && !excludeUserId.isEmpty();
+
+        pool.read(connection -> {
+            Map<Integer, PreparedStatement> statements = new HashMap<>();
+            try {
+                for (int from = 0; from < teams.size(); from += IN_LIST_CHUNK_SIZE) {
+                    List<String> chunk = teams.subList(from, Math.min(from + IN_LIST_CHUNK_SIZE, teams.size()));
+                    PreparedStatement ps = statements.get(chunk.size());
+                    if (ps == null) {
+                        ps = connection.prepareStatement(selectPrefix
+                                + "(" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")"
+                                + (excludeUser ? " AND " + userColumn + " <> ?" : ""));
+                        statements.put(chunk.size(), ps);
+                    }
+                    int index = 1;
+                    for (String teamId : chunk) {
+                        ps.setString(index++, teamId);
+                    }
+                    if (excludeUser) {
+                        ps.setString(index, excludeUserId);
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            result.add(rs.getString(1));
+                        }
+                    }
+                }
+            } finally {
+                for (PreparedStatement ps : statements.values()) {
+                    ps.close();
+                }
+            }
+            return null;
+        });
+    }
+
     /**
      * Get all teams for a specific user
      */
@@ -152,13 +280,18 @@ public class UserTeamService {
 
         final String sql = "SELECT team_id FROM user_teams WHERE user_id = ?";
         List<String> result = new ArrayList<>();
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    result.add(rs.getString("team_id"));
+        try {
+            pool.read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            result.add(rs.getString("team_id"));
+                        }
+                    }
                 }
-            }
+                return null;
+            });
         } catch (SQLException e) {
             LOGGER.severe("Failed to fetch teams for user " + userId + ": " + e.getMessage());
         }
@@ -174,28 +307,56 @@ public class UserTeamService {
         }
 
         final String sql = "SELECT 1 FROM user_teams WHERE user_id = ? AND team_id = ? LIMIT 1";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            ps.setString(2, teamId);
-            try (ResultSet rs = ps.executeQuery()) {
-                return rs.next();
-            }
+        try {
+            return pool.read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, userId);
+                    ps.setString(2, teamId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return rs.next();
+                    }
+                }
+            });
         } catch (SQLException e) {
             LOGGER.severe("Failed to check user-team membership: " + e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Get every team id with at least one member
+     */
+    public List<String> getAllTeams() {
+        final String sql = "SELECT DISTINCT team_id FROM user_teams";
+        List<String> result = new ArrayList<>();
+        try {
+            pool.read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql);
+                     ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(rs.getString("team_id"));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.severe("Failed to list teams: " + e.getMessage());
+        }
+        return result;
+    }
+
     /**
      * Get total number of teams
      */
     public int getTeamCount() {
         final String sql = "SELECT COUNT(DISTINCT team_id) AS cnt FROM user_teams";
-        try (PreparedStatement ps = connection.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            if (rs.next()) {
-                return rs.getInt("cnt");
-            }
+        try {
+            return pool.read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql);
+                     ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getInt("cnt") : 0;
+                }
+            });
         } catch (SQLException e) {
             LOGGER.severe("Failed to count teams: " + e.getMessage());
         }
@@ -207,11 +368,13 @@ public class UserTeamService {
      */
     public int getMembershipCount() {
         final String sql = "SELECT COUNT(*) AS cnt FROM user_teams";
-        try (PreparedStatement ps = connection.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            if (rs.next()) {
-                return rs.getInt("cnt");
-            }
+        try {
+            return pool.read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql);
+                     ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getInt("cnt") : 0;
+                }
+            });
         } catch (SQLException e) {
             LOGGER.severe("Failed to count memberships: " + e.getMessage());
         }
@@ -227,10 +390,18 @@ public class UserTeamService {
         }
 
         final String sql = "DELETE FROM user_teams WHERE user_id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            int rows = ps.executeUpdate();
+        List<String> teams = teamTopics.isEnabled() ? getTeamsForUser(userId) : List.of();
+        try {
+            int rows = pool.write(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, userId);
+                    return ps.executeUpdate();
+                }
+            });
             LOGGER.info(String.format("Removed user %s from %d teams", userId, rows));
+            if (!teams.isEmpty()) {
+                teamTopics.teamsLeft(userId, teams);
+            }
             return rows;
         } catch (SQLException e) {
             LOGGER.severe("Failed to remove user from all teams: " + e.getMessage());
@@ -247,10 +418,18 @@ public class UserTeamService {
         }
 
         final String sql = "DELETE FROM user_teams WHERE team_id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, teamId);
-            int rows = ps.executeUpdate();
+        List<String> members = teamTopics.isEnabled() ? getUsersInTeam(teamId) : List.of();
+        try {
+            int rows = pool.write(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    ps.setString(1, teamId);
+                    return ps.executeUpdate();
+                }
+            });
             LOGGER.info(String.format("Removed %d users from team %s", rows, teamId));
+            if (!members.isEmpty()) {
+                teamTopics.membersRemoved(teamId, members);
+            }
             return rows;
         } catch (SQLException e) {
             LOGGER.severe("Failed to remove all users from team: " + e.getMessage());
@@ -262,9 +441,20 @@ public class UserTeamService {
      * Clear all user-team memberships (for testing/admin purposes)
      */
     public void clearAll() {
-        try (Statement stmt = connection.createStatement()) {
-            stmt.executeUpdate("DELETE FROM user_teams");
+        Map<String, List<String>> membersByTeam = new HashMap<>();
+        if (teamTopics.isEnabled()) {
+            for (String teamId : getAllTeams()) {
+                membersByTeam.put(teamId, getUsersInTeam(teamId));
+            }
+        }
+        try {
+            pool.write(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    return stmt.executeUpdate("DELETE FROM user_teams");
+                }
+            });
             LOGGER.info("Cleared all user-team memberships from storage");
+            membersByTeam.forEach(teamTopics::membersRemoved);
         } catch (SQLException e) {
             LOGGER.severe("Failed to clear user-team memberships: " + e.getMessage());
         }
@@ -282,24 +472,20 @@ public class UserTeamService {
                 "ON CONFLICT(user_id, team_id) DO UPDATE SET added_at = excluded.added_at";
 
         try {
-            connection.setAutoCommit(false);
-            try (PreparedStatement ps = connection.prepareStatement(sql)) {
-                long timestamp = System.currentTimeMillis();
-                for (String userId : userIds) {
-                    ps.setString(1, userId);
-                    ps.setString(2, teamId);
-                    ps.setLong(3, timestamp);
-                    ps.addBatch();
+            pool.writeInTransaction(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    long timestamp = System.currentTimeMillis();
+                    for (String userId : userIds) {
+                        ps.setString(1, userId);
+                        ps.setString(2, teamId);
+                        ps.setLong(3, timestamp);
+                        ps.addBatch();
+                    }
+                    return ps.executeBatch();
                 }
-                ps.executeBatch();
-                connection.commit();
-                LOGGER.info(String.format("Added %d users to team %s", userIds.size(), teamId));
-            } catch (SQLException e) {
-                connection.rollback();
-                throw e;
-            } finally {
-                connection.setAutoCommit(true);
-            }
+            });
+            LOGGER.info(String.format("Added %d users to team %s", userIds.size(), teamId));
+            teamTopics.membersAdded(teamId, userIds);
         } catch (SQLException e) {
             LOGGER.severe("Failed to batch add users to team: " + e.getMessage());
             throw new IllegalArgumentException("Failed to batch add users to team", e);
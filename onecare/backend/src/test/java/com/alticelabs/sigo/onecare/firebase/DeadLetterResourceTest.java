@@ -0,0 +1,21 @@
+package com.alticelabs.sigo.onecare.firebase;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Test;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.is;
+
+@QuarkusTest
+class DeadLetterResourceTest {
+
+  @Test
+  void replayRequiresPositiveLimit() {
+    given()
+        .queryParam("limit", 0)
+        .when().post("/api/dead-letters/replay")
+        .then()
+        .statusCode(400)
+        .body("error", is("limit must be positive"));
+  }
+}
@@ -0,0 +1,23 @@
+package com.alticelabs.sigo.onecare.firebase;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Test;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.containsString;
+
+@QuarkusTest
+class MetricsTest {
+
+  @Test
+  void pipelineMetricsAreExported() {
+    given()
+        .when().get("/q/metrics")
+        .then()
+        .statusCode(200)
+        .body(containsString("onecare_tokens_registered"))
+        .body(containsString("onecare_kafka_record_processing_seconds"))
+        .body(containsString("onecare_tokens_invalid_removed_total"))
+        .body(containsString("onecare_outbox_pending"));
+  }
+}
@@ -20,4 +20,15 @@ class NotificationResourceTest {
         .statusCode(400)
         .body("error", is("type is required"));
   }
+
+  @Test
+  void sendRequiresTokens() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"title\":\"Hello\"}")
+        .when().post("/api/notifications/send")
+        .then()
+        .statusCode(400)
+        .body("error", is("Device tokens are required"));
+  }
 }
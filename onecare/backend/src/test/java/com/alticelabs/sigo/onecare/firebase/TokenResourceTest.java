@@ -0,0 +1,158 @@
+package com.alticelabs.sigo.onecare.firebase;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+@QuarkusTest
+class TokenResourceTest {
+
+  @Test
+  void registerLookupAndUnregister() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"userId\":\"token-test-user\",\"deviceToken\":\"token-test-device\"}")
+        .when().post("/api/tokens/register")
+        .then()
+        .statusCode(200);
+
+    given()
+        .when().get("/api/tokens/user/token-test-user")
+        .then()
+        .statusCode(200)
+        .body("tokenCount", is(1))
+        .body("tokens", hasItem("token-test-device"));
+
+    given()
+        .when().delete("/api/tokens/unregister?token=token-test-device")
+        .then()
+        .statusCode(200);
+
+    given()
+        .when().get("/api/tokens/user/token-test-user")
+        .then()
+        .statusCode(200)
+        .body("tokenCount", is(0));
+  }
+
+  @Test
+  void registerRequiresUserId() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"deviceToken\":\"token-test-device\"}")
+        .when().post("/api/tokens/register")
+        .then()
+        .statusCode(400)
+        .body("error", is("userId is required"));
+  }
+
+  @Test
+  void digestIntervalIsValidated() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"intervalMinutes\":0}")
+        .when().put("/api/tokens/user/token-test-user/digest")
+        .then()
+        .statusCode(400);
+
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"intervalMinutes\":30}")
+        .when().put("/api/tokens/user/token-test-user/digest")
+        .then()
+        .statusCode(200);
+
+    given()
+        .when().get("/api/tokens/user/token-test-user")
+        .then()
+        .statusCode(200)
+        .body("digestIntervalMinutes", is(30));
+
+    given()
+        .when().delete("/api/tokens/user/token-test-user/digest")
+        .then()
+        .statusCode(200);
+  }
+
+  @Test
+  void registerBatchReportsEachItem() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"tokens\":["
+            + "{\"userId\":\"batch-user-1\",\"deviceToken\":\"batch-device-1\"},"
+            + "{\"userId\":\"batch-user-2\"},"
+            + "{\"userId\":\"batch-user-1\",\"deviceToken\":\"batch-device-2\"}]}")
+        .when().post("/api/tokens/register-batch")
+        .then()
+        .statusCode(200)
+        .body("successCount", is(2))
+        .body("failureCount", is(1))
+        .body("results[1].status", is("invalid"));
+
+    given()
+        .when().get("/api/tokens/user/batch-user-1")
+        .then()
+        .statusCode(200)
+        .body("tokenCount", is(2));
+
+    given()
+        .when().delete("/api/tokens/unregister?token=batch-device-1")
+        .then()
+        .statusCode(200);
+
+    given()
+        .when().delete("/api/tokens/unregister?token=batch-device-2")
+        .then()
+        .statusCode(200);
+  }
+
+  @Test
+  void pagesAndExportTokens() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"tokens\":["
+            + "{\"userId\":\"page-user\",\"deviceToken\":\"page-device-a\"},"
+            + "{\"userId\":\"page-user\",\"deviceToken\":\"page-device-b\"},"
+            + "{\"userId\":\"page-user\",\"deviceToken\":\"page-device-c\"}]}")
+        .when().post("/api/tokens/register-batch")
+        .then()
+        .statusCode(200);
+
+    String cursor = given()
+        .when().get("/api/tokens/user/page-user?limit=2")
+        .then()
+        .statusCode(200)
+        .body("tokens", is(List.of("page-device-a", "page-device-b")))
+        .extract().path("nextCursor");
+
+    given()
+        .queryParam("limit", 2)
+        .queryParam("cursor", cursor)
+        .when().get("/api/tokens/user/page-user")
+        .then()
+        .statusCode(200)
+        .body("tokens", is(List.of("page-device-c")))
+        .body("nextCursor", nullValue());
+
+    given()
+        .when().get("/api/tokens/export")
+        .then()
+        .statusCode(200)
+        .body(containsString("{\"token\":\"page-device-b\",\"userId\":\"page-user\",\"savedAt\":"));
+
+    for (String token : List.of("page-device-a", "page-device-b", "page-device-c")) {
+      given()
+          .when().delete("/api/tokens/unregister?token=" + token)
+          .then()
+          .statusCode(200);
+    }
+  }
+}
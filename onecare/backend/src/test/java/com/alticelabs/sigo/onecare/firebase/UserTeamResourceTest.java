@@ -0,0 +1,63 @@
+package com.alticelabs.sigo.onecare.firebase;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+@QuarkusTest
+class UserTeamResourceTest {
+
+  @Test
+  void pagesTeamMembers() {
+    given()
+        .contentType(ContentType.JSON)
+        .body("{\"teamId\":\"page-team\",\"userIds\":[\"member-c\",\"member-a\",\"member-b\"]}")
+        .when().post("/api/user-teams/add-batch")
+        .then()
+        .statusCode(200);
+
+    String cursor = given()
+        .when().get("/api/user-teams/team/page-team/users?limit=2")
+        .then()
+        .statusCode(200)
+        .body("users", is(List.of("member-a", "member-b")))
+        .extract().path("nextCursor");
+
+    given()
+        .queryParam("limit", 2)
+        .queryParam("cursor", cursor)
+        .when().get("/api/user-teams/team/page-team/users")
+        .then()
+        .statusCode(200)
+        .body("users", is(List.of("member-c")))
+        .body("nextCursor", nullValue());
+
+    given()
+        .when().get("/api/user-teams/export")
+        .then()
+        .statusCode(200)
+        .body(containsString("{\"userId\":\"member-a\",\"teamId\":\"page-team\",\"addedAt\":"));
+
+    for (String userId : List.of("member-a", "member-b", "member-c")) {
+      given()
+          .when().delete("/api/user-teams/remove?userId=" + userId + "&teamId=page-team")
+          .then()
+          .statusCode(200);
+    }
+  }
+
+  @Test
+  void rejectsOversizedPage() {
+    given()
+        .when().get("/api/user-teams/team/page-team/users?limit=5000")
+        .then()
+        .statusCode(400);
+  }
+}
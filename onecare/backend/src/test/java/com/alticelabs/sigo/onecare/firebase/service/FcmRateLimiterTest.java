@@ -0,0 +1,99 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FcmRateLimiterTest {
+
+  private FcmRateLimiter limiter;
+
+  @AfterEach
+  void tearDown() {
+    if (limiter != null) {
+      limiter.shutdown();
+    }
+  }
+
+  @Test
+  void rejectsRateOrBurstThatCouldNeverRefill() {
+    assertThrows(IllegalStateException.class, () -> limiter(0, 10).start());
+    assertThrows(IllegalStateException.class, () -> limiter(-5, 10).start());
+    assertThrows(IllegalStateException.class, () -> limiter(Double.NaN, 10).start());
+    assertThrows(IllegalStateException.class, () -> limiter(100, 0).start());
+  }
+
+  @Test
+  void grantsAtOnceWhenDisabled() {
+    FcmRateLimiter disabled = limiter(0, 0);
+    disabled.enabled = false;
+    disabled.start();
+
+    assertTrue(disabled.acquire(FcmRateLimiter.Caller.KAFKA, 1_000_000).isDone());
+  }
+
+  @Test
+  void grantsWithinBurstAtOnce() {
+    limiter = limiter(100, 10);
+    limiter.start();
+
+    assertTrue(limiter.acquire(FcmRateLimiter.Caller.REST, 4).isDone());
+    assertTrue(limiter.acquire(FcmRateLimiter.Caller.REST, 6).isDone());
+    assertFalse(limiter.acquire(FcmRateLimiter.Caller.REST, 5).isDone());
+  }
+
+  @Test
+  void servesWaitingCallersInTurn() throws Exception {
+    limiter = limiter(100, 10);
+    limiter.start();
+    assertTrue(limiter.acquire(FcmRateLimiter.Caller.KAFKA, 10).isDone());
+
+    // A Kafka backlog queued ahead of one REST send: REST is served second, not last
+    List<String> granted = new CopyOnWriteArrayList<>();
+    CompletableFuture<?> all = CompletableFuture.allOf(
+        limiter.acquire(FcmRateLimiter.Caller.KAFKA, 10).thenRun(() -> granted.add("kafka-1")),
+        limiter.acquire(FcmRateLimiter.Caller.KAFKA, 10).thenRun(() -> granted.add("kafka-2")),
+        limiter.acquire(FcmRateLimiter.Caller.KAFKA, 10).thenRun(() -> granted.add("kafka-3")),
+        limiter.acquire(FcmRateLimiter.Caller.REST, 10).thenRun(() -> granted.add("rest-1")));
+
+    all.get(5, TimeUnit.SECONDS);
+
+    assertEquals(List.of("kafka-1", "rest-1", "kafka-2", "kafka-3"), granted);
+  }
+
+  @Test
+  void failsWaitersAndNewAcquiresOnceStopped() {
+    limiter = limiter(1, 1);
+    limiter.start();
+    assertTrue(limiter.acquire(FcmRateLimiter.Caller.KAFKA, 1).isDone());
+    CompletableFuture<Void> waiting = limiter.acquire(FcmRateLimiter.Caller.KAFKA, 1);
+
+    limiter.shutdown();
+
+    ExecutionException queued = assertThrows(ExecutionException.class, () -> waiting.get(1, TimeUnit.SECONDS));
+    assertInstanceOf(IllegalStateException.class, queued.getCause());
+    ExecutionException late = assertThrows(ExecutionException.class,
+        () -> limiter.acquire(FcmRateLimiter.Caller.REST, 1).get(1, TimeUnit.SECONDS));
+    assertInstanceOf(IllegalStateException.class, late.getCause());
+  }
+
+  private static FcmRateLimiter limiter(double messagesPerSecond, int burst) {
+    FcmRateLimiter limiter = new FcmRateLimiter();
+    limiter.enabled = true;
+    limiter.messagesPerSecond = messagesPerSecond;
+    limiter.burst = burst;
+    limiter.metrics = TestSupport.metrics();
+    return limiter;
+  }
+}
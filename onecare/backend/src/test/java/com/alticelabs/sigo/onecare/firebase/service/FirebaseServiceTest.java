@@ -0,0 +1,130 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.firebase.ErrorCode;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseException;
+import com.google.firebase.IncomingHttpResponse;
+import com.google.firebase.OutgoingHttpRequest;
+import com.google.firebase.messaging.FirebaseMessagingStub;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FirebaseServiceTest {
+
+  private FirebaseApp app;
+  private FirebaseService service;
+  private MeterRegistry registry;
+
+  @BeforeEach
+  void setUp() {
+    app = FirebaseMessagingStub.offlineApp("test-" + UUID.randomUUID());
+    service = new FirebaseService();
+    service.metrics = TestSupport.metrics();
+    registry = service.metrics.registry;
+    service.multicastChunkSize = 2;
+    service.multicastMaxParallelism = 2;
+    service.retryMaxAttempts = 3;
+    service.retryInitialBackoffMs = 10;
+    service.retryMaxBackoffMs = 10_000;
+    // Disabled: grants every send at once
+    service.rateLimiter = new FcmRateLimiter();
+    service.start(FirebaseMessagingStub.create(app));
+  }
+
+  @AfterEach
+  void tearDown() {
+    app.delete();
+  }
+
+  @Test
+  void retriesTransientFailuresAndCountsFinalOutcomeOnce() {
+    NotificationResponse response = service.sendMulticastNotification(
+        List.of("device-1", "flaky-1", "stale-1", "flaky-2"), null, null, Map.of("ticketId", "TTK-1"),
+        null, null, null, null);
+
+    Map<String, NotificationResponse.NotificationResult> byToken = new HashMap<>();
+    response.getResults().forEach(result -> byToken.put(result.getToken(), result));
+    assertTrue(byToken.get("device-1").isSuccess());
+    // UNAVAILABLE on the first send, delivered by the retry
+    assertTrue(byToken.get("flaky-1").isSuccess());
+    assertTrue(byToken.get("flaky-2").isSuccess());
+    assertFalse(byToken.get("stale-1").isSuccess());
+    assertEquals("UNREGISTERED", byToken.get("stale-1").getErrorCode());
+    assertEquals(3, response.getSuccessCount());
+    assertEquals(1, response.getFailureCount());
+
+    // The retried tokens count as sent once, never as UNAVAILABLE
+    assertEquals(3.0, sendResults("none"));
+    assertEquals(1.0, sendResults("UNREGISTERED"));
+    assertNull(registry.find("onecare.fcm.messages").tag("error_code", "UNAVAILABLE").counter());
+  }
+
+  @Test
+  void keepsTransientFailureOnceAttemptsAreExhausted() {
+    service.retryMaxAttempts = 1;
+
+    NotificationResponse response = service.sendMulticastNotification(
+        List.of("flaky-1"), null, null, Map.of("ticketId", "TTK-1"), null, null, null, null);
+
+    assertFalse(response.getResults().get(0).isSuccess());
+    assertEquals("UNAVAILABLE", response.getResults().get(0).getErrorCode());
+    assertEquals(1.0, sendResults("UNAVAILABLE"));
+  }
+
+  @Test
+  void waitsAtLeastRetryAfter() {
+    assertEquals(3_000, service.retryDelayMillis(quotaExceeded("3"), 1));
+  }
+
+  @Test
+  void givesUpWhenRetryAfterExceedsMaxBackoff() {
+    assertEquals(-1, service.retryDelayMillis(quotaExceeded("30"), 1));
+  }
+
+  @Test
+  void backsOffWithJitterWithoutRetryAfter() {
+    FirebaseException unavailable = new FirebaseException(ErrorCode.UNAVAILABLE, "Unavailable", null);
+
+    for (int attempt = 1; attempt <= 2; attempt++) {
+      long backoff = service.retryInitialBackoffMs << (attempt - 1);
+      long delay = service.retryDelayMillis(unavailable, attempt);
+      assertTrue(delay >= backoff / 2 && delay <= backoff, "attempt " + attempt + " waited " + delay);
+    }
+    assertEquals(-1, service.retryDelayMillis(unavailable, service.retryMaxAttempts));
+  }
+
+  @Test
+  void neverRetriesPermanentErrors() {
+    assertEquals(-1, service.retryDelayMillis(
+        new FirebaseException(ErrorCode.INVALID_ARGUMENT, "Invalid registration", null), 1));
+    assertEquals(-1, service.retryDelayMillis(new IllegalStateException("boom"), 1));
+  }
+
+  private double sendResults(String errorCode) {
+    Counter counter = registry.find("onecare.fcm.messages").tag("error_code", errorCode).counter();
+    return counter == null ? 0 : counter.count();
+  }
+
+  private static FirebaseException quotaExceeded(String retryAfter) {
+    HttpResponseException response = new HttpResponseException.Builder(
+        429, "Too Many Requests", new HttpHeaders().set("Retry-After", retryAfter)).build();
+    return new FirebaseException(ErrorCode.RESOURCE_EXHAUSTED, "Quota exceeded", null,
+        new IncomingHttpResponse(response, new OutgoingHttpRequest("POST", "https://fcm.googleapis.com/v1/messages")));
+  }
+}
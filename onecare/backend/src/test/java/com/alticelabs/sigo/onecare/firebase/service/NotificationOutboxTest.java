@@ -0,0 +1,227 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.alticelabs.sigo.onecare.firebase.dto.NotificationResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NotificationOutboxTest {
+
+  @TempDir
+  Path directory;
+
+  private SqliteConnectionPool pool;
+  private NotificationOutbox outbox;
+  private final List<NotificationOutbox.Entry> deadLettered = new CopyOnWriteArrayList<>();
+  private final List<String> quarantined = new CopyOnWriteArrayList<>();
+  // What the stubbed FirebaseService answers for the tokens of one send
+  private Function<List<String>, CompletionStage<NotificationResponse>> sends;
+
+  @BeforeEach
+  void setUp() {
+    pool = TestSupport.openPool(directory);
+    NotificationMetrics metrics = TestSupport.metrics();
+    TokenStorageService tokens = new TokenStorageService();
+    tokens.pool = pool;
+    tokens.metrics = metrics;
+    tokens.teamTopics = new TeamTopicService();
+    tokens.init();
+
+    outbox = new NotificationOutbox();
+    outbox.pool = pool;
+    outbox.objectMapper = new ObjectMapper();
+    outbox.metrics = metrics;
+    outbox.tokenStorageService = tokens;
+    outbox.firebaseService = new FirebaseService() {
+      @Override
+      public CompletionStage<NotificationResponse> sendMulticastNotificationAsync(
+          FcmRateLimiter.Caller caller, List<String> targets, String title, String body, Map<String, String> data,
+          String titleLocKey, List<String> titleLocArgs, String bodyLocKey, List<String> bodyLocArgs) {
+        return sends.apply(targets);
+      }
+    };
+    outbox.deadLetters = new DeadLetterService() {
+      @Override
+      public void deadLetter(NotificationOutbox.Entry entry, Throwable cause) {
+        deadLettered.add(entry);
+      }
+
+      @Override
+      public void deadLetterUndecodable(String ticketId, String row, Throwable cause) {
+        quarantined.add(ticketId);
+      }
+    };
+    outbox.workers = 1;
+    outbox.pollIntervalMs = 50;
+    outbox.maxAttempts = 2;
+    outbox.retryBackoffMs = 60_000;
+    outbox.init();
+  }
+
+  @AfterEach
+  void tearDown() {
+    outbox.shutdown();
+    pool.close();
+  }
+
+  @Test
+  void claimsDueEntriesOldestFirstAndOnlyOnce() throws Exception {
+    outbox.enqueue(List.of(entry("TTK-1", "a"), entry("TTK-2", "b")));
+    assertEquals(2, outbox.getPendingCount());
+
+    assertEquals("TTK-1", outbox.claimNext().ticketId());
+    assertEquals("TTK-2", outbox.claimNext().ticketId());
+    assertNull(outbox.claimNext());
+  }
+
+  @Test
+  void removesDeliveredEntry() throws Exception {
+    sends = targets -> CompletableFuture.completedFuture(response(targets, List.of()));
+    outbox.enqueue(List.of(entry("TTK-1", "a", "b")));
+
+    outbox.deliver(outbox.claimNext());
+
+    assertEquals(0, outbox.getPendingCount());
+    assertEquals(0, rowCount());
+  }
+
+  @Test
+  void reschedulesFailedSendWithBackoffThenDeadLetters() throws Exception {
+    sends = targets -> CompletableFuture.failedFuture(new IllegalStateException("FCM down"));
+    outbox.enqueue(List.of(entry("TTK-1", "a")));
+
+    long before = System.currentTimeMillis();
+    outbox.deliver(outbox.claimNext());
+    // Released but not due before the backoff
+    assertNull(outbox.claimNext());
+    Map<String, Object> row = row();
+    assertEquals(1, row.get("attempts"));
+    assertNull(row.get("claimed_at"));
+    assertTrue((Long) row.get("next_attempt_at") >= before + outbox.retryBackoffMs);
+
+    makeDue();
+    NotificationOutbox.Entry retry = outbox.claimNext();
+    assertEquals(1, retry.attempts());
+    outbox.deliver(retry);
+
+    assertEquals(1, deadLettered.size());
+    assertEquals("TTK-1", deadLettered.get(0).ticketId());
+    assertEquals(0, outbox.getPendingCount());
+    assertEquals(0, rowCount());
+  }
+
+  @Test
+  void retriesOnlyTokensOfFailedChunks() throws Exception {
+    sends = targets -> CompletableFuture.completedFuture(response(targets, List.of("b")));
+    outbox.enqueue(List.of(entry("TTK-1", "a", "b")));
+
+    outbox.deliver(outbox.claimNext());
+
+    Map<String, Object> row = row();
+    assertEquals("[\"b\"]", row.get("targets"));
+    assertEquals(1, row.get("attempts"));
+    assertTrue(deadLettered.isEmpty());
+  }
+
+  @Test
+  void quarantinesUndecodableRow() throws Exception {
+    pool.write(connection -> {
+      try (Statement stmt = connection.createStatement()) {
+        return stmt.executeUpdate("INSERT INTO outbox (ticket_id, kind, targets, data, next_attempt_at, created_at) "
+            + "VALUES ('TTK-BAD', 'BOGUS', '[]', '{}', 0, 0)");
+      }
+    });
+    outbox.enqueue(List.of(entry("TTK-1", "a")));
+
+    NotificationOutbox.Entry claimed = outbox.claimNext();
+
+    assertEquals("TTK-1", claimed.ticketId());
+    assertEquals(List.of("TTK-BAD"), quarantined);
+    assertEquals(1, rowCount());
+  }
+
+  @Test
+  void shutdownAbandonsHungSendAndKeepsItClaimed() throws Exception {
+    sends = targets -> new CompletableFuture<>();
+    outbox.enqueue(List.of(entry("TTK-1", "a")));
+    outbox.onStart(null);
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (row().get("claimed_at") == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    long start = System.nanoTime();
+    outbox.shutdown();
+
+    assertTrue(System.nanoTime() - start < 4_000_000_000L);
+    assertNotNull(row().get("claimed_at"));
+  }
+
+  private static NotificationOutbox.Entry entry(String ticketId, String... tokens) {
+    return NotificationOutbox.Entry.forTokens(ticketId, List.of(tokens), Map.of("ticketId", ticketId));
+  }
+
+  private static NotificationResponse response(List<String> targets, List<String> unsent) {
+    List<NotificationResponse.NotificationResult> results = new ArrayList<>();
+    for (String token : targets) {
+      boolean sent = !unsent.contains(token);
+      results.add(new NotificationResponse.NotificationResult(
+          token, sent, sent ? "m-" + token : null, sent ? null : "chunk failed", sent ? null : "UNAVAILABLE"));
+    }
+    NotificationResponse response = new NotificationResponse(targets.size() - unsent.size(), unsent.size(), results);
+    response.setUnsentTokens(unsent);
+    return response;
+  }
+
+  private void makeDue() throws SQLException {
+    pool.write(connection -> {
+      try (Statement stmt = connection.createStatement()) {
+        return stmt.executeUpdate("UPDATE outbox SET next_attempt_at = 0");
+      }
+    });
+  }
+
+  private int rowCount() throws SQLException {
+    return pool.read(connection -> {
+      try (Statement stmt = connection.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM outbox")) {
+        return rs.next() ? rs.getInt(1) : 0;
+      }
+    });
+  }
+
+  private Map<String, Object> row() throws SQLException {
+    return pool.read(connection -> {
+      try (Statement stmt = connection.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT attempts, next_attempt_at, claimed_at, targets FROM outbox")) {
+        assertTrue(rs.next());
+        Map<String, Object> row = new HashMap<>();
+        row.put("attempts", rs.getInt("attempts"));
+        row.put("next_attempt_at", rs.getLong("next_attempt_at"));
+        row.put("claimed_at", rs.getObject("claimed_at"));
+        row.put("targets", rs.getString("targets"));
+        return row;
+      }
+    });
+  }
+}
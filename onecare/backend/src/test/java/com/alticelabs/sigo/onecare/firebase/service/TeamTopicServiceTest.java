@@ -0,0 +1,104 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TeamTopicServiceTest {
+
+  private static final String TOPIC_CHARACTERS = "[a-zA-Z0-9\\-_.~%]+";
+
+  private TeamTopicService topics;
+  private final List<String> calls = new CopyOnWriteArrayList<>();
+  private CountDownLatch expectedCalls = new CountDownLatch(0);
+
+  @BeforeEach
+  void setUp() {
+    topics = new TeamTopicService();
+    topics.enabled = true;
+    topics.topicPrefix = "team_";
+    topics.firebaseService = new FirebaseService() {
+      @Override
+      public int subscribeToTopic(List<String> tokens, String topic) {
+        return record("subscribe", tokens, topic);
+      }
+
+      @Override
+      public int unsubscribeFromTopic(List<String> tokens, String topic) {
+        return record("unsubscribe", tokens, topic);
+      }
+    };
+    Map<String, List<String>> teams = Map.of(
+        "alice", List.of("lisboa", "porto"),
+        "bob", List.of("porto", "faro"));
+    topics.userTeamService = new UserTeamService() {
+      @Override
+      public List<String> getTeamsForUser(String userId) {
+        return teams.getOrDefault(userId, List.of());
+      }
+    };
+    topics.init();
+  }
+
+  @AfterEach
+  void tearDown() {
+    topics.shutdown();
+  }
+
+  @Test
+  void keepsAllowedCharactersOfTeamId() {
+    assertEquals("team_Lisboa-Norte_2.a~b", topics.topicFor("Lisboa-Norte_2.a~b"));
+  }
+
+  @Test
+  void percentEncodesOtherCharactersAsUtf8() {
+    assertEquals("team_%C3%89quipe%20Lisboa%2F2", topics.topicFor("Équipe Lisboa/2"));
+    assertEquals("team_50%25", topics.topicFor("50%"));
+    // The escape character itself is encoded, so encoded-looking ids stay distinct
+    assertNotEquals(topics.topicFor("50%"), topics.topicFor("50%25"));
+
+    for (String teamId : List.of("Équipe Lisboa/2", "a:b#c", "equipa 日本", "50%")) {
+      assertTrue(topics.topicFor(teamId).matches(TOPIC_CHARACTERS), teamId);
+    }
+  }
+
+  @Test
+  void movedTokenLeavesOnlyTeamsTheNewOwnerIsNotIn() throws Exception {
+    expectedCalls = new CountDownLatch(3);
+
+    topics.tokenRegistered("bob", "device-1", "alice");
+
+    assertTrue(expectedCalls.await(5, TimeUnit.SECONDS));
+    assertEquals(List.of(
+        "unsubscribe [device-1] team_lisboa",
+        "subscribe [device-1] team_porto",
+        "subscribe [device-1] team_faro"), calls);
+  }
+
+  @Test
+  void dropsUpdatesAfterShutdown() throws Exception {
+    topics.shutdown();
+
+    topics.tokenRegistered("alice", "device-1", null);
+    topics.membersAdded("porto", List.of("alice"));
+
+    Thread.sleep(50);
+    assertTrue(calls.isEmpty());
+  }
+
+  private int record(String action, List<String> tokens, String topic) {
+    calls.add(action + " " + tokens + " " + topic);
+    expectedCalls.countDown();
+    return tokens.size();
+  }
+}
@@ -0,0 +1,33 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.nio.file.Path;
+
+/**
+ * Wiring shared by the service unit tests and the benchmarks: services are built by hand (no CDI
+ * container) on a SQLite file in a throwaway directory.
+ */
+final class TestSupport {
+
+  private TestSupport() {
+  }
+
+  static NotificationMetrics metrics() {
+    NotificationMetrics metrics = new NotificationMetrics();
+    metrics.registry = new SimpleMeterRegistry();
+    metrics.init();
+    return metrics;
+  }
+
+  static SqliteConnectionPool openPool(Path directory) {
+    SqliteConnectionPool pool = new SqliteConnectionPool();
+    pool.databasePath = directory.resolve("tokens.db").toString();
+    pool.readPoolSize = 4;
+    pool.busyTimeoutMs = 5000;
+    pool.journalMode = "WAL";
+    pool.synchronous = "NORMAL";
+    pool.init();
+    return pool;
+  }
+}
@@ -0,0 +1,48 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TicketCoalescerTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Test
+  void capsMergedChangesOfLongBurst() throws Exception {
+    TicketCoalescer coalescer = new TicketCoalescer();
+    coalescer.objectMapper = objectMapper;
+
+    int burst = 200;
+    KafkaNotificationConsumer.TicketNotification merged = note(0);
+    for (int i = 1; i < burst; i++) {
+      merged = coalescer.merge(merged, note(i));
+    }
+
+    String changes = merged.data().get("changes");
+    JsonNode kept = objectMapper.readTree(changes);
+    assertTrue(changes.getBytes(StandardCharsets.UTF_8).length <= TicketCoalescer.MAX_MERGED_CHANGES_BYTES);
+    assertTrue(kept.size() > 0 && kept.size() <= TicketCoalescer.MAX_MERGED_CHANGES);
+    // The newest change is always kept, older ones are counted
+    assertEquals("note " + (burst - 1), kept.get(kept.size() - 1).path("text").asText());
+    assertEquals(String.valueOf(burst - kept.size()), merged.data().get(TicketCoalescer.CHANGES_OMITTED));
+    assertTrue(objectMapper.writeValueAsBytes(merged.data()).length < 4096);
+  }
+
+  private KafkaNotificationConsumer.TicketNotification note(int i) {
+    String changes = "[{\"type\":\"Note\",\"action\":\"ADD\",\"text\":\"note " + i
+        + "\",\"author\":\"oper1\",\"detail\":\"" + "x".repeat(120) + "\"}]";
+    return new KafkaNotificationConsumer.TicketNotification("TTK-1", "oper1",
+        "ticket_updated_title", "body_note_added", List.of("NOC"),
+        Map.of("ticketId", "TTK-1", "createdBy", "oper2", "actionUsername", "oper1",
+            "titleKey", "ticket_updated_title", "bodyKey", "body_note_added", "changes", changes),
+        "TTK-1:" + i);
+  }
+}
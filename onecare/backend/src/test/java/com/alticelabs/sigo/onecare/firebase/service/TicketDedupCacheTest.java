@@ -0,0 +1,115 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TicketDedupCacheTest {
+
+  private static final String LAST_UPDATE = "2026-01-20T10:15:30Z";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void dropsRepeatedChangeWithinTtl() {
+    TicketDedupCache cache = cache(100, 60);
+    String key = key("TTK-1", "body_status_changed");
+
+    assertFalse(cache.isDuplicate(key));
+    cache.remember(List.of(key));
+
+    assertTrue(cache.isDuplicate(key));
+    assertFalse(cache.isDuplicate(key("TTK-1", "body_note_added")));
+    assertFalse(cache.isDuplicate(key("TTK-2", "body_status_changed")));
+  }
+
+  @Test
+  void forgetsChangeAfterTtl() throws Exception {
+    TicketDedupCache cache = cache(100, 0);
+    String key = key("TTK-1", "body_status_changed");
+    cache.remember(List.of(key));
+
+    Thread.sleep(5);
+
+    assertFalse(cache.isDuplicate(key));
+  }
+
+  @Test
+  void evictsOldestBeyondMaxEntries() {
+    TicketDedupCache cache = cache(2, 60);
+    String first = key("TTK-1", "body_status_changed");
+    String second = key("TTK-2", "body_status_changed");
+    String third = key("TTK-3", "body_status_changed");
+
+    cache.remember(List.of(first));
+    cache.remember(List.of(second));
+    cache.remember(List.of(third));
+
+    assertFalse(cache.isDuplicate(first));
+    assertTrue(cache.isDuplicate(second));
+    assertTrue(cache.isDuplicate(third));
+  }
+
+  @Test
+  void neverDeduplicatesEventsWithoutLastUpdate() {
+    TicketDedupCache cache = cache(100, 60);
+    String key = TicketDedupCache.key("TTK-1", null, "ticket_updated_title", "body_status_changed", "[]");
+    assertNull(key);
+
+    cache.remember(Collections.singletonList(key));
+    assertFalse(cache.isDuplicate(key));
+  }
+
+  @Test
+  void keySeparatesChangesOfSameUpdate() {
+    String status = TicketDedupCache.key("TTK-1", LAST_UPDATE, "ticket_updated_title", "body_status_changed",
+        "[{\"fieldName\":\"status\",\"newValue\":\"Closed\"}]");
+    String otherStatus = TicketDedupCache.key("TTK-1", LAST_UPDATE, "ticket_updated_title", "body_status_changed",
+        "[{\"fieldName\":\"status\",\"newValue\":\"Open\"}]");
+
+    assertNotEquals(status, otherStatus);
+  }
+
+  @Test
+  void persistedKeysSurviveRestart() {
+    SqliteConnectionPool pool = TestSupport.openPool(directory);
+    try {
+      TicketDedupCache before = cache(100, 60);
+      before.pool = pool;
+      before.persist = true;
+      before.init();
+      String key = key("TTK-1", "body_status_changed");
+      before.remember(List.of(key));
+
+      TicketDedupCache after = cache(100, 60);
+      after.pool = pool;
+      after.persist = true;
+      after.init();
+
+      assertTrue(after.isDuplicate(key));
+    } finally {
+      pool.close();
+    }
+  }
+
+  private static TicketDedupCache cache(int maxEntries, long ttlMinutes) {
+    TicketDedupCache cache = new TicketDedupCache();
+    cache.enabled = true;
+    cache.maxEntries = maxEntries;
+    cache.ttlMinutes = ttlMinutes;
+    return cache;
+  }
+
+  private static String key(String ticketId, String bodyKey) {
+    return TicketDedupCache.key(ticketId, LAST_UPDATE, "ticket_updated_title", bodyKey, "[]");
+  }
+}
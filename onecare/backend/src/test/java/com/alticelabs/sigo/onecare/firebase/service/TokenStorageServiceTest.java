@@ -0,0 +1,181 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.alticelabs.sigo.onecare.firebase.dto.DeviceTokenRequest;
+import io.micrometer.core.instrument.DistributionSummary;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenStorageServiceTest {
+
+  private static final int THREADS = 8;
+
+  @TempDir
+  Path directory;
+
+  private SqliteConnectionPool pool;
+  private NotificationMetrics metrics;
+
+  @BeforeEach
+  void setUp() {
+    pool = TestSupport.openPool(directory);
+    metrics = TestSupport.metrics();
+  }
+
+  @AfterEach
+  void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  void groupCommitPersistsAndIndexesConcurrentWrites() throws Exception {
+    TokenStorageService tokens = service();
+    int perThread = 50;
+
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int writer = t;
+      writers.add(Thread.ofPlatform().start(() -> {
+        for (int i = 0; i < perThread; i++) {
+          tokens.registerToken("user-" + writer, "token-" + writer + "-" + i);
+        }
+      }));
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    tokens.unregisterToken("token-0-0");
+    tokens.shutdown();
+
+    Map<String, String> table = table();
+    assertEquals(THREADS * perThread - 1, table.size());
+    assertFalse(table.containsKey("token-0-0"));
+    for (int t = 0; t < THREADS; t++) {
+      assertEquals(t == 0 ? perThread - 1 : perThread, tokens.getTokensForUser("user-" + t).size());
+    }
+    // Every write went through a group commit
+    DistributionSummary groups = metrics.registry.find("onecare.tokens.group.commit.size").summary();
+    assertEquals(THREADS * perThread + 1, (long) groups.totalAmount());
+  }
+
+  @Test
+  void commitsWritesRacingTheShutdownDrain() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      TokenStorageService tokens = service();
+      Set<String> registered = ConcurrentHashMap.newKeySet();
+      List<Thread> writers = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        int writer = t;
+        writers.add(Thread.ofPlatform().start(() -> {
+          for (int i = 0; i < 100; i++) {
+            String token = "token-" + writer + "-" + i;
+            tokens.registerToken("user-" + writer, token);
+            registered.add(token);
+          }
+        }));
+      }
+      Thread.sleep(2);
+      tokens.shutdown();
+      for (Thread writer : writers) {
+        writer.join(5_000);
+        assertFalse(writer.isAlive(), "a write enqueued after the shutdown drain was never committed");
+      }
+
+      assertTrue(table().keySet().containsAll(registered));
+      clear();
+    }
+  }
+
+  @Test
+  void indexMatchesTableAfterConcurrentReassignments() throws Exception {
+    TokenStorageService tokens = service();
+    int sharedTokens = 10;
+
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int writer = t;
+      writers.add(Thread.ofPlatform().start(() -> {
+        Random random = new Random(writer);
+        for (int i = 0; i < 100; i++) {
+          String token = "token-" + random.nextInt(sharedTokens);
+          switch (random.nextInt(3)) {
+            case 0 -> tokens.registerToken("user-" + writer, token);
+            case 1 -> tokens.unregisterTokens(List.of(token));
+            default -> {
+              DeviceTokenRequest request = new DeviceTokenRequest();
+              request.setUserId("batch-user-" + writer);
+              request.setDeviceToken(token);
+              tokens.registerTokens(List.of(request));
+            }
+          }
+        }
+      }));
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    tokens.shutdown();
+
+    Map<String, String> table = table();
+    Map<String, String> index = new HashMap<>();
+    for (int t = 0; t < THREADS; t++) {
+      for (String user : List.of("user-" + t, "batch-user-" + t)) {
+        for (String token : tokens.getTokensForUser(user)) {
+          assertNull(index.put(token, user), token + " indexed for two users");
+        }
+      }
+    }
+    assertEquals(table, index);
+  }
+
+  private TokenStorageService service() {
+    TokenStorageService tokens = new TokenStorageService();
+    tokens.pool = pool;
+    tokens.metrics = metrics;
+    tokens.teamTopics = new TeamTopicService();
+    tokens.groupCommitEnabled = true;
+    tokens.groupCommitWindowMs = 0;
+    tokens.groupCommitMaxBatch = 256;
+    tokens.init();
+    return tokens;
+  }
+
+  private Map<String, String> table() throws SQLException {
+    return pool.read(connection -> {
+      Map<String, String> owners = new HashMap<>();
+      try (Statement stmt = connection.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT token, user_id FROM tokens")) {
+        while (rs.next()) {
+          owners.put(rs.getString(1), rs.getString(2));
+        }
+      }
+      return owners;
+    });
+  }
+
+  private void clear() throws SQLException {
+    pool.write(connection -> {
+      try (Statement stmt = connection.createStatement()) {
+        return stmt.executeUpdate("DELETE FROM tokens");
+      }
+    });
+  }
+}
@@ -0,0 +1,111 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TtkChangeClassifierTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final TtkChangeClassifier classifier = new TtkChangeClassifier(objectMapper);
+
+  @Test
+  void statusChangeAfterIrrelevantChange() throws Exception {
+    JsonNode root = objectMapper.readTree(TtkPayloads.STATUS_CHANGE);
+
+    TtkChangeClassifier.TtkChangeSummary summary = classifier.classify(root, "TicketUpdated");
+
+    assertTrue(summary.relevant());
+    assertEquals("ticket_updated_title", summary.titleKey());
+    assertEquals("body_status_changed", summary.bodyKey());
+    assertEquals(objectMapper.writeValueAsString(root.path("data").path("changes")), summary.changes());
+  }
+
+  @Test
+  void noteCreatedAtLastUpdateWithoutChanges() throws Exception {
+    TtkChangeClassifier.TtkChangeSummary summary = classify(TtkPayloads.NOTE_FALLBACK, "TicketUpdated");
+
+    assertTrue(summary.relevant());
+    assertEquals("body_note_added", summary.bodyKey());
+    assertEquals("[]", summary.changes());
+  }
+
+  @Test
+  void attachmentRemovalAfterIrrelevantChanges() throws Exception {
+    assertEquals("body_attachment_removed", classify(TtkPayloads.ATTACHMENT, "TicketUpdated").bodyKey());
+  }
+
+  @Test
+  void firstRelevantChangeDecidesBody() throws Exception {
+    TtkChangeClassifier.TtkChangeSummary created = classify(ticket("""
+        [{"type": "Created"}, {"type": "FieldChange", "fieldName": "status"}]"""), "TicketCreated");
+    assertEquals("ticket_created_title", created.titleKey());
+    assertEquals("body_ticket_created", created.bodyKey());
+
+    assertEquals("body_severity_changed", classify(ticket("""
+        [{"type": "FieldChange", "fieldName": "SEVERITY"}, {"type": "FieldChange", "fieldName": "status"}]"""),
+        "TicketUpdated").bodyKey());
+    assertEquals("body_impact_changed", classify(ticket("""
+        [{"type": "FieldChange", "fieldName": "impact"}]"""), "TicketUpdated").bodyKey());
+    assertEquals("body_attachment_added", classify(ticket("""
+        [{"type": "attachment", "action": "ADD"}]"""), "TicketUpdated").bodyKey());
+  }
+
+  @Test
+  void irrelevantChangesWithoutRecentActivityAreDropped() throws Exception {
+    TtkChangeClassifier.TtkChangeSummary summary = classify(ticket("""
+        [{"type": "FieldChange", "fieldName": "description"}, {"type": "Unknown"}]"""), "TicketUpdated");
+
+    assertFalse(summary.relevant());
+    assertEquals(TtkChangeClassifier.TtkChangeSummary.NOT_RELEVANT, summary);
+  }
+
+  @Test
+  void fallsBackToRecentAttachment() throws Exception {
+    String payload = """
+        {"header": {"schema": "TTK"}, "data": {"value": {"lastUpdate": "2026-01-20T10:15:30Z",
+          "notes": [{"creationDate": "2026-01-20T09:00:00Z"}],
+          "attachments": [{"creationDate": "2026-01-20T08:00:00Z"}, {"creationDate": "2026-01-20T10:15:27Z"}]}}}""";
+
+    assertEquals("body_attachment_added", classify(payload, "TicketUpdated").bodyKey());
+  }
+
+  @Test
+  void comparesNonCanonicalCreationDatesAsInstants() throws Exception {
+    // As strings "09:30:00Z" is the latest; as instants the note at 09:15:28-01:00 (10:15:28Z) is
+    String payload = """
+        {"header": {"schema": "TTK"}, "data": {"value": {"lastUpdate": "2026-01-20T10:15:30Z",
+          "notes": [{"creationDate": "2026-01-20T09:15:28-01:00"}, {"creationDate": "2026-01-20T09:30:00Z"}]}}}""";
+
+    assertEquals("body_note_added", classify(payload, "TicketUpdated").bodyKey());
+  }
+
+  @Test
+  void topLevelChangesTakePrecedence() throws Exception {
+    String payload = """
+        {"changes": [{"type": "Note"}],
+         "data": {"value": {}, "changes": [{"type": "FieldChange", "fieldName": "status"}]}}""";
+
+    TtkChangeClassifier.TtkChangeSummary summary = classify(payload, null);
+
+    assertEquals("ticket_updated_title", summary.titleKey());
+    assertEquals("body_note_added", summary.bodyKey());
+    assertEquals("[{\"type\":\"Note\"}]", summary.changes());
+  }
+
+  private TtkChangeClassifier.TtkChangeSummary classify(String payload, String eventType) throws Exception {
+    return classifier.classify(objectMapper.readTree(payload), eventType);
+  }
+
+  // Ticket whose notes and attachments are all older than lastUpdate, so only the changes count
+  private static String ticket(String changes) {
+    return """
+        {"header": {"schema": "TTK"}, "data": {"value": {"lastUpdate": "%s",
+          "notes": [{"creationDate": "2026-01-20T09:00:00Z"}]}, "changes": %s}}"""
+        .formatted(TtkPayloads.LAST_UPDATE, changes);
+  }
+}
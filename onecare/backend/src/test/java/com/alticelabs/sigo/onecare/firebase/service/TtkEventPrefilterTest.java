@@ -0,0 +1,103 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TtkEventPrefilterTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final TtkEventPrefilter prefilter = new TtkEventPrefilter(objectMapper.getFactory());
+
+  @Test
+  void acceptsOnecareTicket() throws Exception {
+    TtkEventPrefilter.Header header = prefilter.scan(TtkPayloads.STATUS_CHANGE);
+
+    assertTrue(header.isTtk());
+    assertTrue(header.isOnecare());
+    assertEquals("TicketUpdated", header.eventType());
+  }
+
+  @Test
+  void dropsOtherOriginAndOtherSchema() throws Exception {
+    TtkEventPrefilter.Header otherOrigin = prefilter.scan(TtkPayloads.OTHER_ORIGIN);
+    assertTrue(otherOrigin.isTtk());
+    assertFalse(otherOrigin.isOnecare());
+    assertEquals("Portal", otherOrigin.origin());
+
+    assertFalse(prefilter.scan(TtkPayloads.OTHER_SCHEMA).isTtk());
+  }
+
+  @Test
+  void agreesWithTreeBasedFilter() throws Exception {
+    List<String> payloads = List.of(
+        TtkPayloads.STATUS_CHANGE,
+        TtkPayloads.NOTE_FALLBACK,
+        TtkPayloads.ATTACHMENT,
+        TtkPayloads.OTHER_ORIGIN,
+        TtkPayloads.OTHER_SCHEMA,
+        // data before header
+        """
+        {"data": {"value": {"origin": "Onecare"}}, "header": {"schema": "TTK", "eventType": "TicketUpdated"}}""",
+        // case-insensitive schema and origin
+        """
+        {"header": {"schema": "ttk", "eventType": "TicketCreated"}, "data": {"value": {"origin": "ONECARE"}}}""",
+        // schema nested in another header field is ignored
+        """
+        {"header": {"meta": {"schema": "WORKORDER"}, "schema": "TTK"}, "data": {"value": {"origin": "Onecare"}}}""",
+        // origin outside data.value is ignored
+        """
+        {"header": {"schema": "TTK"}, "data": {"origin": "Onecare", "value": {"id": "TTK-1"}}}""",
+        """
+        {"data": {"value": {"origin": "Onecare"}}}""",
+        """
+        {"header": "TTK", "data": {"value": {"origin": "Onecare"}}}""",
+        """
+        {"header": {"schema": "TTK"}}""",
+        """
+        {"header": {"schema": "TTK"}, "data": {"value": "Onecare"}}""",
+        """
+        {"header": {"schema": "TTK"}, "data": {"value": {"origin": {"name": "Onecare"}}}}""",
+        """
+        {"header": {"schema": "TTK"}, "data": {"value": {"origin": ["Onecare"]}}}""",
+        """
+        {"header": {"schema": "TTK", "eventType": null}, "data": {"value": {"origin": "Onecare"}}}""",
+        """
+        {"header": {"schema": "TTK", "eventType": 7}, "data": {"value": {"origin": "Onecare"}}}""",
+        """
+        {"header": {"schema": null}, "data": {"value": {"origin": "Onecare"}}}""",
+        """
+        [{"header": {"schema": "TTK"}}]""",
+        "\"TTK\"",
+        "{}");
+
+    for (String payload : payloads) {
+      TtkEventPrefilter.Header header = prefilter.scan(payload);
+      JsonNode root = objectMapper.readTree(payload);
+      String schema = optionalText(root, "header", "schema");
+      boolean ttk = "TTK".equalsIgnoreCase(schema);
+
+      assertEquals(ttk, header.isTtk(), payload);
+      if (ttk) {
+        assertEquals(optionalText(root, "header", "eventType"), header.eventType(), payload);
+        String origin = root.path("data").path("value").path("origin").asText("");
+        assertEquals("Onecare".equalsIgnoreCase(origin), header.isOnecare(), payload);
+      }
+    }
+  }
+
+  // The tree-based lookup the consumer used before the pre-filter
+  private static String optionalText(JsonNode root, String... path) {
+    JsonNode current = root;
+    for (String p : path) {
+      current = current.path(p);
+    }
+    return current.isMissingNode() ? null : current.asText();
+  }
+}
@@ -0,0 +1,98 @@
+package com.alticelabs.sigo.onecare.firebase.service;
+
+import java.time.Instant;
+
+/**
+ * Representative sigo-ttk payloads for the notification pipeline tests and benchmarks.
+ */
+final class TtkPayloads {
+
+    private TtkPayloads() {
+    }
+
+    static final String LAST_UPDATE = "2026-01-20T10:15:30Z";
+
+    /** Status FieldChange preceded by an irrelevant field change */
+    static final String STATUS_CHANGE = ticket("TicketUpdated", "Onecare", """
+            [
+              {"type": "FieldChange", "fieldName": "description", "oldValue": "Router down", "newValue": "Router down in Lisbon"},
+              {"type": "FieldChange", "fieldName": "status", "oldValue": "Open", "newValue": "InProgress"}
+            ]""");
+
+    /** No change entries: relevance comes from a note created at lastUpdate */
+    static final String NOTE_FALLBACK = ticket("TicketUpdated", "Onecare", "[]");
+
+    /** Attachment removal after several irrelevant changes */
+    static final String ATTACHMENT = ticket("TicketUpdated", "Onecare", """
+            [
+              {"type": "FieldChange", "fieldName": "category", "oldValue": "Network", "newValue": "Access"},
+              {"type": "FieldChange", "fieldName": "priority", "oldValue": "P3", "newValue": "P2"},
+              {"type": "Attachment", "action": "REMOVE", "fileName": "trace.pcap"}
+            ]""");
+
+    /** Ticket from another origin: dropped by the pre-filter */
+    static final String OTHER_ORIGIN = ticket("TicketUpdated", "Portal", """
+            [{"type": "FieldChange", "fieldName": "status", "oldValue": "Open", "newValue": "Closed"}]""");
+
+    /** Event of another schema: dropped by the pre-filter */
+    static final String OTHER_SCHEMA = """
+            {"header": {"schema": "WORKORDER", "eventType": "WorkOrderUpdated", "timestamp": "2026-01-20T10:15:30Z"},
+             "data": {"value": {"id": "WO-1", "origin": "Onecare", "steps": [1, 2, 3, 4, 5, 6, 7, 8]}}}""";
+
+    static String payload(String kind) {
+        return switch (kind) {
+            case "status" -> STATUS_CHANGE;
+            case "note" -> NOTE_FALLBACK;
+            case "attachment" -> ATTACHMENT;
+            case "otherOrigin" -> OTHER_ORIGIN;
+            case "otherSchema" -> OTHER_SCHEMA;
+            default -> throw new IllegalArgumentException("Unknown payload kind: " + kind);
+        };
+    }
+
+    private static String ticket(String eventType, String origin, String changes) {
+        StringBuilder notes = new StringBuilder();
+        StringBuilder attachments = new StringBuilder();
+        Instant base = Instant.parse(LAST_UPDATE);
+        for (int i = 12; i >= 0; i--) {
+            if (notes.length() > 0) {
+                notes.append(',');
+                attachments.append(',');
+            }
+            String createdAt = base.minusSeconds(i * 3600L).toString();
+            notes.append("""
+                    {"id": "N-%d", "author": "oper%d", "text": "Customer contacted, waiting for field team update", "creationDate": "%s"}"""
+                    .formatted(i, i % 4, createdAt));
+            attachments.append("""
+                    {"id": "A-%d", "fileName": "evidence-%d.png", "size": 48213, "creationDate": "%s"}"""
+                    .formatted(i, i, base.minusSeconds(i * 7200L + 600).toString()));
+        }
+        return """
+                {
+                  "header": {"schema": "TTK", "eventType": "%s", "version": "2", "timestamp": "%s", "source": "sigo-ttk"},
+                  "data": {
+                    "userInfo": {"username": "oper1", "displayName": "Operator One", "team": "NOC"},
+                    "value": {
+                      "id": "TTK-2026-000123",
+                      "name": "Loss of service in Lisbon POP",
+                      "description": "Multiple customers report no connectivity since 09:40",
+                      "origin": "%s",
+                      "impact": "High",
+                      "severity": "Major",
+                      "status": "InProgress",
+                      "priority": "P2",
+                      "category": "Network",
+                      "subcategory": "Access",
+                      "createdBy": "oper2",
+                      "createdByTeam": "NOC",
+                      "creationDate": "2026-01-20T09:45:00Z",
+                      "lastUpdate": "%s",
+                      "services": ["FTTH", "VOIP", "IPTV"],
+                      "notes": [%s],
+                      "attachments": [%s]
+                    },
+                    "changes": %s
+                  }
+                }""".formatted(eventType, LAST_UPDATE, origin, LAST_UPDATE, notes, attachments, changes);
+    }
+}
@@ -0,0 +1,86 @@
+package com.google.firebase.messaging;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.common.base.Suppliers;
+import com.google.firebase.ErrorCode;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline {@link FirebaseMessaging} for the tests and benchmarks. Lives in the SDK package to
+ * reach the package-private builder and client seam; nothing leaves the JVM. Tokens starting with
+ * {@link #STALE_PREFIX} fail with UNREGISTERED, tokens starting with {@link #FLAKY_PREFIX} fail
+ * with UNAVAILABLE on every other send, and every other send returns a fake message id.
+ */
+public final class FirebaseMessagingStub {
+
+    public static final String STALE_PREFIX = "stale-";
+    public static final String FLAKY_PREFIX = "flaky-";
+
+    private static final FirebaseMessagingException UNREGISTERED = FirebaseMessagingException.withMessagingErrorCode(
+            new FirebaseMessagingException(ErrorCode.NOT_FOUND, "Requested entity was not found."),
+            MessagingErrorCode.UNREGISTERED);
+
+    private static final FirebaseMessagingException UNAVAILABLE = FirebaseMessagingException.withMessagingErrorCode(
+            new FirebaseMessagingException(ErrorCode.UNAVAILABLE, "The service is currently unavailable."),
+            MessagingErrorCode.UNAVAILABLE);
+
+    private FirebaseMessagingStub() {
+    }
+
+    public static FirebaseApp offlineApp(String name) {
+        FirebaseOptions options = FirebaseOptions.builder()
+                .setCredentials(GoogleCredentials.create(new AccessToken("benchmark", null)))
+                .setProjectId("benchmark")
+                .build();
+        return FirebaseApp.initializeApp(options, name);
+    }
+
+    public static FirebaseMessaging create(FirebaseApp app) {
+        FirebaseMessagingClient client = new StubClient();
+        return FirebaseMessaging.builder()
+                .setFirebaseApp(app)
+                .setMessagingClient(Suppliers.ofInstance(client))
+                .setInstanceIdClient(Suppliers.ofInstance(null))
+                .build();
+    }
+
+    private static final class StubClient implements FirebaseMessagingClient {
+
+        private final AtomicLong sequence = new AtomicLong();
+        private final Map<String, Boolean> flakyFailed = new ConcurrentHashMap<>();
+
+        @Override
+        public String send(Message message, boolean dryRun) throws FirebaseMessagingException {
+            String token = message.getToken();
+            if (token != null && token.startsWith(STALE_PREFIX)) {
+                throw UNREGISTERED;
+            }
+            if (token != null && token.startsWith(FLAKY_PREFIX)
+                    && Boolean.TRUE.equals(flakyFailed.merge(token, true, (previous, ignored) -> !previous))) {
+                throw UNAVAILABLE;
+            }
+            return "projects/benchmark/messages/" + sequence.incrementAndGet();
+        }
+
+        @Override
+        public BatchResponse sendAll(List<Message> messages, boolean dryRun) {
+            List<SendResponse> responses = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                try {
+                    responses.add(SendResponse.fromMessageId(send(message, dryRun)));
+                } catch (FirebaseMessagingException e) {
+                    responses.add(SendResponse.fromException(e));
+                }
+            }
+            return new BatchResponseImpl(responses);
+        }
+    }
+}
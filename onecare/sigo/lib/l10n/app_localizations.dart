@@ -216,6 +216,8 @@ abstract class AppLocalizations {
   String get maintenanceWindowTitle;
   String maintenanceWindowBody(String startAt, String endAt);
   String get generalInformationTitle;
+  String get digestTitle;
+  String digestBody(int eventCount, int ticketCount);
   String ticketUpdatedTitle(String ticketId);
   String ticketCreatedTitle(String ticketId);
   String get ticketUpdated;
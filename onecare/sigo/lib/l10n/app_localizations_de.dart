@@ -384,6 +384,11 @@ class AppLocalizationsDe extends AppLocalizations {
   @override
   String get generalInformationTitle => 'Allgemeine Information';
   @override
+  String get digestTitle => 'Ticket-Aktualisierungen';
+  @override
+  String digestBody(int eventCount, int ticketCount) =>
+      '$eventCount Aktualisierungen zu $ticketCount Tickets';
+  @override
   String ticketUpdatedTitle(String ticketId) => 'Ticket $ticketId aktualisiert';
   @override
   String ticketCreatedTitle(String ticketId) => 'Ticket $ticketId erstellt';
@@ -383,6 +383,11 @@ class AppLocalizationsEn extends AppLocalizations {
   @override
   String get generalInformationTitle => 'General Information';
   @override
+  String get digestTitle => 'Ticket updates';
+  @override
+  String digestBody(int eventCount, int ticketCount) =>
+      '$eventCount updates on $ticketCount tickets';
+  @override
   String ticketUpdatedTitle(String ticketId) => 'Ticket $ticketId updated';
   @override
   String ticketCreatedTitle(String ticketId) => 'Ticket $ticketId created';
@@ -384,6 +384,11 @@ class AppLocalizationsFr extends AppLocalizations {
   @override
   String get generalInformationTitle => 'Information générale';
   @override
+  String get digestTitle => 'Mises à jour des tickets';
+  @override
+  String digestBody(int eventCount, int ticketCount) =>
+      '$eventCount mises à jour sur $ticketCount tickets';
+  @override
   String ticketUpdatedTitle(String ticketId) => 'Ticket $ticketId mis à jour';
   @override
   String ticketCreatedTitle(String ticketId) => 'Ticket $ticketId créé';
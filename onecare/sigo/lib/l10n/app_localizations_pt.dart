@@ -383,6 +383,11 @@ class AppLocalizationsPt extends AppLocalizations {
   @override
   String get generalInformationTitle => 'Informação geral';
   @override
+  String get digestTitle => 'Atualizações de tickets';
+  @override
+  String digestBody(int eventCount, int ticketCount) =>
+      '$eventCount atualizações em $ticketCount tickets';
+  @override
   String ticketUpdatedTitle(String ticketId) => 'Ticket $ticketId atualizado';
   @override
   String ticketCreatedTitle(String ticketId) => 'Ticket $ticketId criado';
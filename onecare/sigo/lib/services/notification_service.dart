@@ -566,6 +566,20 @@ class NotificationService {
           topic: notification.topic,
         );
       }
+    } else if (type == 'digest') {
+      // Summary of buffered ticket changes for users in digest mode
+      final eventCount = int.tryParse(notification.data['eventCount']?.toString() ?? '') ?? 0;
+      final ticketCount = int.tryParse(notification.data['ticketCount']?.toString() ?? '') ?? 0;
+      return AppNotification(
+        id: notification.id,
+        title: l10n.digestTitle,
+        body: l10n.digestBody(eventCount, ticketCount),
+        data: notification.data,
+        receivedAt: notification.receivedAt,
+        read: notification.read,
+        isTopicNotification: notification.isTopicNotification,
+        topic: notification.topic,
+      );
     } else if (type == 'general') {
       // Always use localized "General Information" title
       final body = notification.data['body']?.toString() ?? notification.body;
@@ -596,6 +596,11 @@ class _NotificationsScreenState extends State<NotificationsScreen>
     return type == 'general';
   }
 
+  bool _isDigest(AppNotification notification) {
+    final type = notification.data['type']?.toString().toLowerCase();
+    return type == 'digest';
+  }
+
   /// Builds a localized title for the notification based on its data.
   String _buildLocalizedTitle(AppNotification notification, AppLocalizations l10n) {
     // For topic notifications, always use localized titles
@@ -605,6 +610,9 @@ class _NotificationsScreenState extends State<NotificationsScreen>
     if (_isGeneralTopic(notification)) {
       return l10n.generalInformationTitle;
     }
+    if (_isDigest(notification)) {
+      return l10n.digestTitle;
+    }
 
     // Build title from ticketId - check if it's a Create notification
     final ticketId = notification.ticketId;
@@ -683,6 +691,12 @@ class _NotificationsScreenState extends State<NotificationsScreen>
       }
     }
 
+    if (_isDigest(notification)) {
+      final eventCount = int.tryParse(notification.data['eventCount']?.toString() ?? '') ?? 0;
+      final ticketCount = int.tryParse(notification.data['ticketCount']?.toString() ?? '') ?? 0;
+      return l10n.digestBody(eventCount, ticketCount);
+    }
+
     // If body is already set, use it
     if (notification.body != null && notification.body!.isNotEmpty) {
       return notification.body!;